@@ -200,6 +200,9 @@ public class CoffSection {
 	    Lib.strictReadFile(file, faddr, memory, paddr, initlen);
 
 	Arrays.fill(memory, paddr+initlen, paddr+pageSize, (byte) 0);
+
+	for (int i=0; i<Machine.numProcessors(); i++)
+	    Machine.processor(i).invalidateDecodeCache(ppn);
     }
 
     /** The COFF object to which this section belongs. */
@@ -4,9 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.ArrayList;
+import java.util.Collections;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -38,6 +37,13 @@ import java.util.SortedSet;
  * simulation (even with randomized time slices), but it wouldn't work on real
  * hardware. But even though Nachos can't always detect when your program
  * would fail in real life, you should still write properly synchronized code.
+ *
+ * <p>
+ * Pending interrupts are kept in a hierarchical timing wheel, so scheduling
+ * an interrupt and expiring one both take constant time. The time of the
+ * earliest pending interrupt is cached, so a tick with nothing due costs a
+ * single comparison. Interrupts due at the same time are delivered in the
+ * order they were scheduled.
  */
 public final class Interrupt {
     /**
@@ -53,7 +59,11 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+	wheels = new PendingInterrupt[wheelLevels][wheelSize];
+
+	// debug flags are fixed once the machine is running
+	traceInterrupts = Lib.test(dbgInt);
+	updateCheckTime();
     }
 
     /**
@@ -102,6 +112,67 @@ public final class Interrupt {
 	return oldStatus;
     }
 
+    /**
+     * Let simulated time pass while the processor has nothing to do. Time is
+     * advanced in whole kernel ticks to the last tick before the next pending
+     * interrupt is due, so that the next tick (for example, the one taken
+     * when interrupts are next enabled) delivers it. The result is the same
+     * as taking that many kernel ticks, but without calling
+     * <tt>checkIfDue()</tt> for each of them.
+     *
+     * <p>
+     * Does nothing if an IPI is outstanding, or if there are no pending
+     * interrupts.
+     */
+    public void idle() {
+	if (numPendingIPIs > 0 || numPending == 0)
+	    return;
+
+	Stats stats = privilege.stats;
+
+	long skip = (earliest() - stats.totalTicks - 1) / Stats.KernelTick;
+	if (skip <= 0)
+	    return;
+
+	long ticks = skip * Stats.KernelTick;
+
+	Lib.debug(dbgInt, "Idling for " + ticks + " ticks");
+
+	stats.kernelTicks += ticks;
+	stats.totalTicks += ticks;
+	if (stats.cpuKernelTicks != null)
+	    stats.cpuKernelTicks[Machine.currentProcessor()] += ticks;
+    }
+
+    /**
+     * Return the time of the earliest pending interrupt. There must be at
+     * least one.
+     */
+    private long earliest() {
+	long earliest = Long.MAX_VALUE;
+
+	for (int i=0; i<wheelSize; i++) {
+	    PendingInterrupt toOccur = wheels[0][(int) ((wheelTime+i) & wheelMask)];
+	    if (toOccur != null) {
+		earliest = toOccur.time;
+		break;
+	    }
+	}
+
+	for (int level=1; level<wheelLevels; level++) {
+	    for (int slot=0; slot<wheelSize; slot++) {
+		for (PendingInterrupt toOccur = wheels[level][slot];
+		     toOccur != null; toOccur = toOccur.next)
+		    earliest = Math.min(earliest, toOccur.time);
+	    }
+	}
+	for (PendingInterrupt toOccur = overflow; toOccur != null;
+	     toOccur = toOccur.next)
+	    earliest = Math.min(earliest, toOccur.time);
+
+	return earliest;
+    }
+
     /**
      * Tests whether interrupts are enabled.
      *
@@ -130,7 +201,173 @@ public final class Interrupt {
 		  "Scheduling the " + type +
 		  " interrupt handler at time = " + time);
 
-	pending.add(toOccur);
+	place(toOccur);
+	numPending++;
+
+	if (time < nextDue) {
+	    nextDue = time;
+	    updateCheckTime();
+	}
+    }
+
+    /**
+     * Note that a processor has been sent an IPI, so that interrupts are
+     * checked on every tick until it has been delivered.
+     */
+    void postIPI() {
+	numPendingIPIs++;
+	updateCheckTime();
+    }
+
+    /**
+     * Note that a processor has taken its pending IPI.
+     */
+    void clearIPI() {
+	Lib.assertTrue(numPendingIPIs > 0);
+	numPendingIPIs--;
+	updateCheckTime();
+    }
+
+    /**
+     * Recompute the time of the next tick that must call
+     * <tt>checkIfDue()</tt>.
+     */
+    private void updateCheckTime() {
+	if (traceInterrupts || numPendingIPIs > 0)
+	    checkTime = Long.MIN_VALUE;
+	else
+	    checkTime = nextDue;
+    }
+
+    /**
+     * Put a pending interrupt in the wheel slot for its time. A level 0 slot
+     * holds the interrupts for a single time, kept in the order they were
+     * scheduled; a slot at level <i>n</i> covers
+     * 2<sup>8<i>n</i></sup> ticks, and is spread over the lower levels once
+     * <tt>wheelTime</tt> reaches it.
+     *
+     * @param	toOccur	the interrupt to place.
+     */
+    private void place(PendingInterrupt toOccur) {
+	long delta = toOccur.time - wheelTime;
+	Lib.assertTrue(delta >= 0);
+
+	if (delta < wheelSize) {
+	    PendingInterrupt[] slots = wheels[0];
+	    int slot = (int) (toOccur.time & wheelMask);
+
+	    if (slots[slot] == null || slots[slot].id > toOccur.id) {
+		toOccur.next = slots[slot];
+		slots[slot] = toOccur;
+	    }
+	    else {
+		PendingInterrupt prev = slots[slot];
+		while (prev.next != null && prev.next.id < toOccur.id)
+		    prev = prev.next;
+
+		toOccur.next = prev.next;
+		prev.next = toOccur;
+	    }
+	    return;
+	}
+
+	for (int level=1; level<wheelLevels; level++) {
+	    if (delta < (1L << (wheelBits*(level+1)))) {
+		int slot = (int) ((toOccur.time >> (wheelBits*level)) & wheelMask);
+
+		toOccur.next = wheels[level][slot];
+		wheels[level][slot] = toOccur;
+		return;
+	    }
+	}
+
+	toOccur.next = overflow;
+	overflow = toOccur;
+    }
+
+    /**
+     * Move the interrupts in the higher level slots that <tt>wheelTime</tt>
+     * has just reached down to the lower levels.
+     */
+    private void cascade() {
+	for (int level=1; level<wheelLevels; level++) {
+	    int slot = (int) ((wheelTime >> (wheelBits*level)) & wheelMask);
+
+	    PendingInterrupt list = wheels[level][slot];
+	    wheels[level][slot] = null;
+	    replace(list);
+
+	    if (slot != 0)
+		return;
+	}
+
+	PendingInterrupt list = overflow;
+	overflow = null;
+	replace(list);
+    }
+
+    private void replace(PendingInterrupt list) {
+	while (list != null) {
+	    PendingInterrupt next = list.next;
+	    place(list);
+	    list = next;
+	}
+    }
+
+    /**
+     * Remove and return the earliest pending interrupt that is due at or
+     * before the specified time, or return <tt>null</tt> if there is none.
+     * Only one interrupt is removed at a time, because its handler may
+     * switch threads, and the next thread may check for interrupts itself.
+     *
+     * @param	time	the current time.
+     * @return	the next due interrupt, or <tt>null</tt>.
+     */
+    private PendingInterrupt removeDue(long time) {
+	while (numPending > 0 && wheelTime <= time) {
+	    int slot = (int) (wheelTime & wheelMask);
+	    PendingInterrupt toOccur = wheels[0][slot];
+
+	    if (toOccur != null) {
+		wheels[0][slot] = toOccur.next;
+		toOccur.next = null;
+		numPending--;
+		return toOccur;
+	    }
+
+	    wheelTime++;
+	    if ((wheelTime & wheelMask) == 0)
+		cascade();
+	}
+
+	if (numPending == 0)
+	    wheelTime = Math.max(wheelTime, time+1);
+
+	return null;
+    }
+
+    /**
+     * Recompute <tt>nextDue</tt>. If the earliest pending interrupt is still
+     * in a higher level slot, use the time <tt>wheelTime</tt> reaches the end
+     * of the level 0 slots instead, which is no later.
+     */
+    private void findNextDue() {
+	if (numPending == 0) {
+	    nextDue = Long.MAX_VALUE;
+	}
+	else {
+	    long end = (wheelTime | wheelMask) + 1;
+
+	    nextDue = end;
+	    for (long t=wheelTime; t<end; t++) {
+		if (wheels[0][(int) (t & wheelMask)] != null) {
+		    nextDue = t;
+		    break;
+		}
+	    }
+	}
+
+	updateCheckTime();
     }
 
     private void tick(boolean inKernelMode) {
@@ -145,7 +382,18 @@ public final class Interrupt {
 	    stats.totalTicks += Stats.UserTick;
 	}
 
-	if (Lib.test(dbgInt))
+	if (stats.cpuKernelTicks != null) {
+	    int cpu = Machine.currentProcessor();
+	    if (inKernelMode)
+		stats.cpuKernelTicks[cpu] += Stats.KernelTick;
+	    else
+		stats.cpuUserTicks[cpu] += Stats.UserTick;
+	}
+
+	if (stats.totalTicks < checkTime)
+	    return;
+
+	if (traceInterrupts)
 	    System.out.println("== Tick " + stats.totalTicks + " ==");
 
 	enabled = false;
@@ -153,36 +401,65 @@ public final class Interrupt {
 	enabled = true;
     }
 
+    private int userBurst() {
+	long quiet = (checkTime - privilege.stats.totalTicks - 1) / Stats.UserTick;
+	if (checkTime == Long.MIN_VALUE || quiet <= 0)
+	    return 0;
+
+	return (int) Math.min(quiet, Integer.MAX_VALUE);
+    }
+
+    private void tickUser(int ticks) {
+	Stats stats = privilege.stats;
+	long elapsed = (long) ticks * Stats.UserTick;
+
+	Lib.assertTrue(stats.totalTicks + elapsed < checkTime);
+
+	stats.userTicks += elapsed;
+	stats.totalTicks += elapsed;
+
+	if (stats.cpuUserTicks != null)
+	    stats.cpuUserTicks[Machine.currentProcessor()] += elapsed;
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
 	Lib.assertTrue(disabled());
 
-	if (Lib.test(dbgInt))
+	if (traceInterrupts)
 	    print();
 
-	if (pending.isEmpty())
+	if (numPendingIPIs > 0 && privilege.processor != null)
+	    privilege.processor.deliverIPI();
+
+	if (nextDue > time)
 	    return;
 
-	if (((PendingInterrupt) pending.first()).time > time)
+	PendingInterrupt next = removeDue(time);
+	if (next == null) {
+	    findNextDue();
 	    return;
+	}
 
 	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
-
+	while (next != null) {
 	    Lib.assertTrue(next.time <= time);
 
+	    // the handler may switch threads, so keep the cache up to date
+	    findNextDue();
+
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
 	    Lib.debug(dbgInt, "  " + next.type);
 			
 	    next.handler.run();
+
+	    next = removeDue(time);
 	}
+	findNextDue();
 
 	Lib.debug(dbgInt, "  (end of list)");
     }
@@ -192,8 +469,21 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
+	ArrayList<PendingInterrupt> pending = new ArrayList<PendingInterrupt>();
+	for (int level=0; level<wheelLevels; level++) {
+	    for (int slot=0; slot<wheelSize; slot++) {
+		for (PendingInterrupt toOccur = wheels[level][slot];
+		     toOccur != null; toOccur = toOccur.next)
+		    pending.add(toOccur);
+	    }
+	}
+	for (PendingInterrupt toOccur = overflow; toOccur != null;
+	     toOccur = toOccur.next)
+	    pending.add(toOccur);
+
+	Collections.sort(pending);
+
+	for (PendingInterrupt toOccur : pending) {
 	    System.out.println("  " + toOccur.type +
 			       ", scheduled at " + toOccur.time);
 	}
@@ -201,7 +491,7 @@ public final class Interrupt {
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
+    private class PendingInterrupt implements Comparable<PendingInterrupt> {
 	PendingInterrupt(long time, String type, Runnable handler) {
 	    this.time = time;
 	    this.type = type;
@@ -209,9 +499,7 @@ public final class Interrupt {
 	    this.id = numPendingInterruptsCreated++;
 	}
 
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
-
+	public int compareTo(PendingInterrupt toOccur) {
 	    // can't return 0 for unequal objects, so check all fields
 	    if (time < toOccur.time)
 		return -1;
@@ -229,6 +517,9 @@ public final class Interrupt {
 	String type;
 	Runnable handler;
 
+	/** The next interrupt in the same wheel slot. */
+	PendingInterrupt next = null;
+
 	private long id;
     }
     
@@ -237,7 +528,28 @@ public final class Interrupt {
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+
+    /** The wheels of pending interrupt lists, indexed by level and slot. */
+    private PendingInterrupt[][] wheels;
+    /** The interrupts too far in the future for the top level. */
+    private PendingInterrupt overflow = null;
+    /** The earliest time whose level 0 slot has not been expired. */
+    private long wheelTime = 0;
+    /** The number of pending interrupts. */
+    private int numPending = 0;
+    /** No interrupt is due before this time. */
+    private long nextDue = Long.MAX_VALUE;
+    /** The number of processors with an IPI that has not been taken. */
+    private int numPendingIPIs = 0;
+    /** <tt>tick()</tt> need not check for interrupts before this time. */
+    private long checkTime;
+    /** <tt>true</tt> if the interrupt debug flag is set. */
+    private boolean traceInterrupts;
+
+    private static final int wheelBits = 8;
+    private static final int wheelSize = 1 << wheelBits;
+    private static final int wheelMask = wheelSize - 1;
+    private static final int wheelLevels = 4;
 
     private static final char dbgInt = 'i';
 
@@ -249,5 +561,13 @@ public final class Interrupt {
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public int userBurst() {
+	    return Interrupt.this.userBurst();
+	}
+
+	public void tickUser(int ticks) {
+	    Interrupt.this.tickUser(ticks);
+	}
     }
 }
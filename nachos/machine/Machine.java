@@ -177,6 +177,17 @@ public final class Machine {
 	    if (numPhysPages == -1)
 		numPhysPages = Config.getInteger("Processor.numPhysPages");
 	    processor = new Processor(privilege, numPhysPages);
+
+	    int numCPUs = Config.getInteger("Processor.numCPUs", 1);
+	    Lib.assertTrue(numCPUs >= 1);
+
+	    processors = new Processor[numCPUs];
+	    processors[0] = processor;
+	    for (int i=1; i<numCPUs; i++)
+		processors[i] = new Processor(privilege, processor, i);
+
+	    if (numCPUs > 1)
+		stats.setNumCPUs(numCPUs);
 	}				      
 
 	if (Config.getBoolean("Machine.console"))
@@ -322,6 +333,53 @@ public final class Machine {
      * @return	the MIPS processor, or <tt>null</tt> if it is not present.
      */     
     public static Processor processor() { return processor; }
+
+    /**
+     * Return the number of simulated MIPS processors. The processors share
+     * main memory, but each has its own registers and TLB.
+     *
+     * @return	the number of processors, which is 1 if there is no
+     *		processor.
+     */
+    public static int numProcessors() {
+	return (processors == null) ? 1 : processors.length;
+    }
+
+    /**
+     * Return the specified MIPS processor.
+     *
+     * @param	cpu	the processor number.
+     * @return	the processor, or <tt>null</tt> if there is no processor.
+     */
+    public static Processor processor(int cpu) {
+	Lib.assertTrue(cpu >= 0 && cpu < numProcessors());
+
+	return (processors == null) ? null : processors[cpu];
+    }
+
+    /**
+     * Return the number of the processor that is currently executing.
+     *
+     * @return	the current processor number.
+     */
+    public static int currentProcessor() { return currentProcessor; }
+
+    /**
+     * Select the processor that executes from now on. The simulated
+     * processors take turns on a single host thread, so only one of them
+     * runs at any time; the kernel calls this when it switches to a thread
+     * that belongs to a different processor. <tt>processor()</tt> returns
+     * the selected processor.
+     *
+     * @param	cpu	the processor number.
+     */
+    public static void setCurrentProcessor(int cpu) {
+	Lib.assertTrue(cpu >= 0 && cpu < numProcessors());
+
+	currentProcessor = cpu;
+	if (processors != null)
+	    processor = processors[cpu];
+    }
     
     /**
      * Return the hardware console.
@@ -344,6 +402,14 @@ public final class Machine {
      */
     public static NetworkLink networkLink() { return networkLink; }
     
+    /**
+     * Return the runtime statistics, so that the kernel can report its own
+     * events through them.
+     *
+     * @return	the statistics object.
+     */
+    public static Stats stats() { return stats; }
+
     /**
      * Return the autograder.
      *
@@ -355,6 +421,8 @@ public final class Machine {
     private static Timer timer = null;
     private static ElevatorBank bank = null;
     private static Processor processor = null;
+    private static Processor[] processors = null;
+    private static int currentProcessor = 0;
     private static SerialConsole console = null;
     private static FileSystem stubFileSystem = null;
     private static NetworkLink networkLink = null;
@@ -29,10 +29,30 @@ public final class Processor {
      *				attach.
      */
     public Processor(Privilege privilege, int numPhysPages) {
+	this(privilege, numPhysPages, null, 0);
+
 	System.out.print(" processor");
 
-	this.privilege = privilege;
 	privilege.processor = new ProcessorPrivilege();
+    }
+
+    /**
+     * Allocate an additional MIPS processor that shares main memory with the
+     * specified one.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	boot		the processor whose memory to share.
+     * @param	cpuID		the number of the new processor.
+     */
+    Processor(Privilege privilege, Processor boot, int cpuID) {
+	this(privilege, boot.numPhysPages, boot.mainMemory, cpuID);
+    }
+
+    private Processor(Privilege privilege, int numPhysPages,
+		      byte[] mainMemory, int cpuID) {
+	this.privilege = privilege;
+	this.cpuID = cpuID;
 
 	Class<?> clsKernel = Lib.loadClass(Config.getString("Kernel.kernel"));
 	Class<?> clsVMKernel = Lib.tryLoadClass("nachos.vm.VMKernel");
@@ -45,12 +65,46 @@ public final class Processor {
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
-	mainMemory = new byte[pageSize * numPhysPages];
+	if (mainMemory == null)
+	    mainMemory = new byte[pageSize * numPhysPages];
+	this.mainMemory = mainMemory;
+	decodeCache = new DecodedInstruction[numPhysPages][];
+
+	// debug flags are fixed once the machine is running
+	traceMemory = Lib.test(dbgProcessor);
+	traceInstructions =
+	    Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble);
+	tracing = traceMemory || traceInstructions;
+
+	// translated blocks are only used when nothing is being traced
+	usingBlocks = Config.getBoolean("Processor.jit", false) && !tracing;
+	blockThreshold = Config.getInteger("Processor.jitThreshold", 16);
 
 	if (usingTLB) {
+	    if (Config.getBoolean("Processor.variableTLB", false)) {
+		tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+		tlbWays = Config.getInteger("Processor.tlbAssociativity", 0);
+	    }
+	    if (tlbWays == 0)
+		tlbWays = tlbSize;
+
+	    Lib.assertTrue(tlbSize > 0 && tlbSize <= maxTLBSize);
+	    // an instruction may need both a code and a data translation
+	    Lib.assertTrue(tlbWays >= 2 && tlbSize % tlbWays == 0);
+	    tlbSets = tlbSize / tlbWays;
+
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
+
+	    int numBuckets = 1;
+	    while (numBuckets < tlbSize)
+		numBuckets *= 2;
+
+	    tlbBuckets = new int[numBuckets];
+	    for (int i=0; i<numBuckets; i++)
+		tlbBuckets[i] = -1;
+	    tlbChain = new int[tlbSize];
 	}
 	else {
 	    translations = null;
@@ -91,18 +145,213 @@ public final class Processor {
 
 	Machine.autoGrader().runProcessor(privilege);
 
-	Instruction inst = new Instruction();
+	// the kernel may move the current thread to another processor
+	Processor cpu = this;
+	while (true)
+	    cpu = cpu.execute();
+    }
+
+    /**
+     * Execute instructions until the kernel switches to a thread on a
+     * different processor while handling an exception or interrupt. Since
+     * that only happens when the current thread has been moved to the other
+     * processor, or when the current thread is resumed there, the thread
+     * continues on the returned processor.
+     *
+     * @return	the processor to continue on.
+     */
+    private Processor execute() {
+	// only pay for tracing if some tracing flag is set
+	Instruction inst = tracing ? new TracedInstruction() : new Instruction();
+
+	if (usingBlocks)
+	    return runBlocks(inst);
 	
-	while (true) {
+	while (Machine.processor() == this) {
 	    try {
 		inst.run();
 	    }
 	    catch (MipsException e) {
+		endBurst();
+		e.handle();
+	    }
+
+	    tick();
+	}
+
+	return Machine.processor();
+    }
+
+    /**
+     * Execute instructions using translated basic blocks, until the current
+     * thread moves to a different processor.
+     *
+     * <p>
+     * Every instruction that is not inside a translated block goes through
+     * the interpreter. Once a block entry point has been fetched
+     * <tt>blockThreshold</tt> times, the straight-line code starting there
+     * (up to and including the delay slot of the first branch) is translated
+     * into a sequence of <tt>TranslatedInstruction</tt> objects, each
+     * specialized to its operation and operands.
+     *
+     * <p>
+     * Only the first instruction of a block is fetched through
+     * <tt>translate()</tt>. The remaining instructions are on the same page
+     * and reuse that translation, which stays valid until kernel code runs.
+     * Kernel code only runs from an exception, which ends the block, or from
+     * an interrupt handler, which flushes the pipe and also ends the block.
+     * Each instruction still advances simulated time through <tt>tick()</tt>.
+     *
+     * @param	inst	the interpreter used for untranslated instructions.
+     * @return	the processor to continue on.
+     */
+    private Processor runBlocks(Instruction inst) {
+	while (Machine.processor() == this) {
+	    BasicBlock block = null;
+	    int blockPC = 0, blockPaddr = 0, flushes = 0;
+	    
+	    try {
+		inst.fetch();
+
+		DecodedInstruction decoded = inst.decoded;
+		if (decoded.block == null &&
+		    ++decoded.heat == blockThreshold)
+		    decoded.block = translateBlock(inst.paddr);
+
+		if (decoded.block != null && decoded.block.length > 0 &&
+		    registers[regNextPC] == registers[regPC]+4) {
+		    block = decoded.block;
+		    blockPC = registers[regPC];
+		    blockPaddr = inst.paddr;
+		    flushes = pipeFlushes;
+		    block.instructions[0].run(inst);
+		}
+		else {
+		    inst.decode();
+		    inst.execute();
+		    inst.writeBack();
+		}
+	    }
+	    catch (MipsException e) {
+		block = null;
+		endBurst();
 		e.handle();
 	    }
 
-	    privilege.interrupt.tick(false);
+	    tick();
+
+	    if (block == null)
+		continue;
+
+	    TranslatedInstruction[] instructions = block.instructions;
+	    
+	    for (int i=1; i<block.length; i++) {
+		// stop as soon as any interrupt handler has run, or the code
+		// in memory no longer matches the translation
+		TranslatedInstruction next = instructions[i];
+		if (pipeFlushes != flushes ||
+		    registers[regPC] != blockPC + i*4 ||
+		    Lib.bytesToInt(mainMemory, blockPaddr + i*4) != next.value)
+		    break;
+		
+		try {
+		    next.run(inst);
+		}
+		catch (MipsException e) {
+		    endBurst();
+		    e.handle();
+		    tick();
+		    break;
+		}
+
+		tick();
+	    }
+	}
+
+	return Machine.processor();
+    }
+
+    /**
+     * Advance the simulated time by one user tick. Ticks are counted locally
+     * for as long as no interrupt can be due, and charged to the interrupt
+     * controller in one step when the burst ends. The tick that ends a burst
+     * goes through <tt>Interrupt.tick()</tt>, so interrupts are delivered on
+     * exactly the same tick as if every instruction were charged by itself.
+     */
+    private void tick() {
+	if (burst > 0) {
+	    burst--;
+	    burstTicks++;
+	    return;
+	}
+
+	endBurst();
+	privilege.interrupt.tick(false);
+
+	// the handlers may have scheduled new interrupts, or moved the current
+	// thread to another processor, which then starts with a fresh burst
+	if (Machine.processor() == this)
+	    burst = privilege.interrupt.userBurst();
+    }
+
+    /**
+     * Charge the ticks of the current burst before kernel code runs, so the
+     * kernel sees the same time as if every instruction were charged by
+     * itself. The next tick checks for interrupts.
+     */
+    private void endBurst() {
+	if (burstTicks > 0) {
+	    privilege.interrupt.tickUser(burstTicks);
+	    burstTicks = 0;
+	}
+
+	burst = 0;
+    }
+
+    /**
+     * Translate the basic block starting at the specified physical address.
+     * The block ends at the first of: the end of the page, the delay slot of
+     * a branch or jump, or an instruction that always raises an exception.
+     * A branch whose delay slot is on the next page, or is itself a branch,
+     * is left to the interpreter.
+     *
+     * @param	paddr	the physical address of the first instruction.
+     * @return	the translated block, which may be empty.
+     */
+    private BasicBlock translateBlock(int paddr) {
+	int pageEnd = (paddr / pageSize + 1) * pageSize;
+	TranslatedInstruction[] instructions =
+	    new TranslatedInstruction[maxBlockLength];
+	int length = 0;
+
+	while (paddr < pageEnd && length < maxBlockLength) {
+	    DecodedInstruction info = new DecodedInstruction();
+	    info.decode(Lib.bytesToInt(mainMemory, paddr));
+
+	    if (Lib.test(Mips.BRANCH, info.flags)) {
+		if (paddr+4 >= pageEnd || length+2 > maxBlockLength)
+		    break;
+
+		DecodedInstruction slot = new DecodedInstruction();
+		slot.decode(Lib.bytesToInt(mainMemory, paddr+4));
+		if (Lib.test(Mips.BRANCH, slot.flags))
+		    break;
+
+		instructions[length++] = translateInstruction(info);
+		instructions[length++] = translateInstruction(slot);
+		break;
+	    }
+
+	    instructions[length++] = translateInstruction(info);
+	    paddr += 4;
+
+	    if (info.operation == Mips.SYSCALL ||
+		info.operation == Mips.UNIMPL ||
+		info.operation == Mips.INVALID)
+		break;
 	}
+
+	return new BasicBlock(instructions, length);
     }
 
     /**
@@ -175,6 +424,33 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+	invalidateTranslationMemos();
+    }
+
+    /**
+     * Return the address space ID used to match TLB entries.
+     *
+     * @return	the current ASID.
+     */
+    public int getASID() {
+	Lib.assertTrue(usingTLB);
+
+	return asid;
+    }
+
+    /**
+     * Set the address space ID. Only TLB entries tagged with this ASID will
+     * be used for further translations, so a kernel can switch address
+     * spaces without flushing the TLB.
+     *
+     * @param	asid	the new ASID, between 0 and <tt>numASIDs-1</tt>.
+     */
+    public void setASID(int asid) {
+	Lib.assertTrue(usingTLB);
+	Lib.assertTrue(asid >= 0 && asid < numASIDs);
+
+	this.asid = asid;
+	invalidateTranslationMemos();
     }
 
     /**
@@ -188,6 +464,35 @@ public final class Processor {
 	return tlbSize;
     }
 
+    /**
+     * Return the associativity of this processor's TLB. A TLB whose
+     * associativity equals its size is fully associative; otherwise the TLB
+     * is divided into sets of this many entries, and a translation may only
+     * be placed in the set selected by its virtual page number.
+     *
+     * @return	the number of entries in each TLB set.
+     */
+    public int getTLBAssociativity() {
+	Lib.assertTrue(usingTLB);
+
+	return tlbWays;
+    }
+
+    /**
+     * Return the index of the first TLB entry in the set that may hold a
+     * translation for the specified virtual page. The set consists of
+     * <tt>getTLBAssociativity()</tt> consecutive entries.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the index of the first entry in the page's TLB set.
+     */
+    public int getTLBSet(int vpn) {
+	Lib.assertTrue(usingTLB);
+	Lib.assertTrue(vpn >= 0 && vpn < maxPages);
+
+	return (vpn % tlbSets) * tlbWays;
+    }
+
     /**
      * Returns the specified TLB entry.
      *
@@ -205,8 +510,10 @@ public final class Processor {
      * Fill the specified TLB entry.
      *
      * <p>
-     * The TLB is fully associative, so the location of an entry within the TLB
-     * does not affect anything.
+     * If the TLB is fully associative, the location of an entry within the
+     * TLB does not affect anything. Otherwise, a valid entry must be written
+     * to the set selected by its virtual page number (see
+     * <tt>getTLBSet()</tt>).
      *
      * @param	number	the index into the TLB.
      * @param	entry	the new contents of the TLB entry.
@@ -214,8 +521,114 @@ public final class Processor {
     public void writeTLBEntry(int number, TranslationEntry entry) {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
+	Lib.assertTrue(!entry.valid || number / tlbWays == entry.vpn % tlbSets);
+	Lib.assertTrue(entry.asid >= 0 && entry.asid < numASIDs);
+
+	if (translations[number].valid)
+	    unhashTLBEntry(number);
 
 	translations[number] = new TranslationEntry(entry);
+
+	if (entry.valid)
+	    hashTLBEntry(number);
+
+	invalidateTranslationMemos();
+    }
+
+    /**
+     * Add the specified valid TLB entry to the chain for its virtual page.
+     */
+    private void hashTLBEntry(int number) {
+	int bucket = tlbBucket(translations[number]);
+
+	tlbChain[number] = tlbBuckets[bucket];
+	tlbBuckets[bucket] = number;
+    }
+
+    /**
+     * Remove the specified valid TLB entry from the chain for its virtual
+     * page.
+     */
+    private void unhashTLBEntry(int number) {
+	int bucket = tlbBucket(translations[number]);
+
+	if (tlbBuckets[bucket] == number) {
+	    tlbBuckets[bucket] = tlbChain[number];
+	    return;
+	}
+
+	for (int i=tlbBuckets[bucket]; ; i=tlbChain[i]) {
+	    if (tlbChain[i] == number) {
+		tlbChain[i] = tlbChain[number];
+		return;
+	    }
+	}
+    }
+
+    /**
+     * Return the hash chain for a virtual page in an address space. The ASID
+     * is mixed in so that processes using the same low pages do not all
+     * share one chain.
+     */
+    private int tlbBucket(int vpn, int asid) {
+	return (vpn ^ (asid * 0x9E3779B1 >>> 16)) & (tlbBuckets.length-1);
+    }
+
+    private int tlbBucket(TranslationEntry entry) {
+	return tlbBucket(entry.vpn, entry.asid);
+    }
+
+    /**
+     * Find the valid TLB entry for the specified virtual page in the current
+     * address space. If the kernel has loaded more than one, the lowest
+     * numbered entry wins.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the matching TLB entry, or <tt>null</tt> if there is none.
+     */
+    private TranslationEntry findTLBEntry(int vpn) {
+	int match = -1;
+
+	for (int i=tlbBuckets[tlbBucket(vpn, asid)]; i != -1; i=tlbChain[i]) {
+	    if (translations[i].vpn == vpn && translations[i].asid == asid &&
+		(match == -1 || i < match))
+		match = i;
+	}
+
+	return (match == -1) ? null : translations[match];
+    }
+
+    /**
+     * Return the number of this processor. The first processor is number 0.
+     *
+     * @return	the number of this processor.
+     */
+    public int getCPUID() {
+	return cpuID;
+    }
+
+    /**
+     * Set the handler called when this processor takes an interprocessor
+     * interrupt. The handler runs on this processor, with interrupts
+     * disabled.
+     *
+     * @param	ipiHandler	the kernel IPI handler.
+     */
+    public void setIPIHandler(Runnable ipiHandler) {
+	this.ipiHandler = ipiHandler;
+    }
+
+    /**
+     * Post an interprocessor interrupt to this processor. The interrupt is
+     * taken the next time this processor checks for interrupts, so it may be
+     * delayed until the processor gets to run. IPIs do not queue: posting one
+     * that is already pending has no effect.
+     */
+    public void sendIPI() {
+	if (!ipiPending) {
+	    ipiPending = true;
+	    Machine.interrupt().postIPI();
+	}
     }
 
     /**
@@ -238,6 +651,56 @@ public final class Processor {
 	return mainMemory;
     }
 
+    /**
+     * Discard all predecoded instructions held for the specified physical
+     * page. Must be called whenever the contents of the page are replaced
+     * wholesale (for example, when a new program page is loaded into it).
+     *
+     * <p>
+     * Each predecoded instruction is tagged with the instruction word it was
+     * decoded from, so an entry is never used once the word in memory
+     * changes. Invalidation just lets the cache forget entries that can no
+     * longer be hit.
+     *
+     * @param	ppn	the physical page whose cached instructions to
+     *			discard.
+     */
+    public void invalidateDecodeCache(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+	decodeCache[ppn] = null;
+    }
+
+    /**
+     * Return the predecoded form of the instruction word stored at the
+     * specified physical address, decoding it only if the cached entry for
+     * that address is missing or was decoded from a different word.
+     *
+     * @param	paddr	the physical address the instruction was fetched from.
+     * @param	value	the instruction word at <tt>paddr</tt>.
+     * @return	the predecoded instruction.
+     */
+    private DecodedInstruction getDecoded(int paddr, int value) {
+	DecodedInstruction[] page = decodeCache[paddr / pageSize];
+	if (page == null) {
+	    page = new DecodedInstruction[pageSize / 4];
+	    decodeCache[paddr / pageSize] = page;
+	}
+
+	int index = (paddr % pageSize) / 4;
+	DecodedInstruction decoded = page[index];
+	if (decoded == null) {
+	    decoded = new DecodedInstruction();
+	    page[index] = decoded;
+	}
+	else if (decoded.value == value) {
+	    return decoded;
+	}
+
+	decoded.decode(value);
+	return decoded;
+    }
+
     /**
      * Concatenate a page number and an offset into an address.
      *
@@ -294,20 +757,50 @@ public final class Processor {
      */
     private int translate(int vaddr, int size, boolean writing)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
+	return translate(vaddr, size, writing, dataMemo);
+    }
+
+    /**
+     * Translate a virtual address into a physical address, first consulting
+     * the specified memo of the last successful translation. A hit needs no
+     * page table or TLB lookup; a miss performs the full translation and, if
+     * it succeeds, records it in the memo.
+     *
+     * @param	vaddr	the virtual address to translate.
+     * @param	size	the size of the memory reference (must be 1, 2, or 4).
+     * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @param	memo	the memo to consult and update.
+     * @return		the physical address.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private int translate(int vaddr, int size, boolean writing,
+			  TranslationMemo memo) throws MipsException {
+	if (traceMemory)
 	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 			       + (writing ? ", write" : ", read..."));
 
 	// check alignment
 	if ((vaddr & (size-1)) != 0) {
 	    Lib.debug(dbgProcessor, "\t\talignment error");
-	    throw new MipsException(exceptionAddressError, vaddr);
+	    throw trap(exceptionAddressError, vaddr);
 	}
 
 	// calculate virtual page number and offset from the virtual address
 	int vpn = pageFromAddress(vaddr);
 	int offset = offsetFromAddress(vaddr);
 
+	// the memoized entry already has its used bit set
+	if (vpn == memo.vpn && (memo.writable || !writing)) {
+	    if (writing)
+		memo.entry.dirty = true;
+
+	    int paddr = memo.base + offset;
+
+	    if (traceMemory)
+		System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
+	    return paddr;
+	}
+
 	TranslationEntry entry = null;
 
 	// if not using a TLB, then the vpn is an index into the table
@@ -317,37 +810,32 @@ public final class Processor {
 		!translations[vpn].valid) {
 		privilege.stats.numPageFaults++;
 		Lib.debug(dbgProcessor, "\t\tpage fault");
-		throw new MipsException(exceptionPageFault, vaddr);
+		throw trap(exceptionPageFault, vaddr);
 	    }
 
 	    entry = translations[vpn];
 	}
-	// else, look through all TLB entries for matching vpn
+	// else, look up the TLB entry for the vpn
 	else {
-	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
-		    entry = translations[i];
-		    break;
-		}
-	    }
+	    entry = findTLBEntry(vpn);
 	    if (entry == null) {
 		privilege.stats.numTLBMisses++;
 		Lib.debug(dbgProcessor, "\t\tTLB miss");
-		throw new MipsException(exceptionTLBMiss, vaddr);
+		throw trap(exceptionTLBMiss, vaddr);
 	    }
 	}
 
 	// check if trying to write a read-only page
 	if (entry.readOnly && writing) {
 	    Lib.debug(dbgProcessor, "\t\tread-only exception");
-	    throw new MipsException(exceptionReadOnly, vaddr);
+	    throw trap(exceptionReadOnly, vaddr);
 	}
 
 	// check if physical page number is out of range
 	int ppn = entry.ppn;
 	if (ppn < 0 || ppn >= numPhysPages) {
 	    Lib.debug(dbgProcessor, "\t\tbad ppn");
-	    throw new MipsException(exceptionBusError, vaddr);
+	    throw trap(exceptionBusError, vaddr);
 	}
 
 	// set used and dirty bits as appropriate
@@ -355,9 +843,14 @@ public final class Processor {
 	if (writing)
 	    entry.dirty = true;
 
+	memo.vpn = vpn;
+	memo.entry = entry;
+	memo.base = ppn*pageSize;
+	memo.writable = !entry.readOnly;
+
 	int paddr = (ppn*pageSize) + offset;
 
-	if (Lib.test(dbgProcessor))
+	if (traceMemory)
 	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
 	return paddr;
     }
@@ -372,7 +865,7 @@ public final class Processor {
      * @exception	MipsException	if a translation error occurred.
      */
     private int readMem(int vaddr, int size) throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (traceMemory)
 	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size);
 
@@ -381,7 +874,7 @@ public final class Processor {
 	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
 				   size);
 
-	if (Lib.test(dbgProcessor))
+	if (traceMemory)
 	    System.out.println("\t\tvalue read=0x" +
 			       Lib.toHexString(value, size*2));
 	
@@ -399,7 +892,7 @@ public final class Processor {
      */
     private void writeMem(int vaddr, int size, int value)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (traceMemory)
 	    System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size + ", value=0x"
 			       + Lib.toHexString(value, size*2));
@@ -541,6 +1034,24 @@ public final class Processor {
     private boolean usingTLB;
     /** Number of TLB entries. */
     private int tlbSize = 4;
+    /** Number of TLB entries in each set. */
+    private int tlbWays = 0;
+    /** Number of TLB sets. */
+    private int tlbSets = 1;
+    /** The largest configurable TLB. */
+    private static final int maxTLBSize = 512;
+    /**
+     * Heads of the chains of valid TLB entries, indexed by the low bits of
+     * the virtual page number.
+     */
+    private int[] tlbBuckets;
+    /** The next TLB entry in each entry's chain, or -1. */
+    private int[] tlbChain;
+    /** The current address space ID. */
+    private int asid = 0;
+
+    /** Number of distinct address space IDs. */
+    public static final int numASIDs = 64;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
@@ -556,40 +1067,167 @@ public final class Processor {
     /** Main memory for user programs. */
     private byte[] mainMemory;
 
+    /**
+     * Predecoded instructions, indexed by physical page number and then by
+     * word offset within the page. A page's array is allocated the first time
+     * an instruction is fetched from it.
+     */
+    private DecodedInstruction[][] decodeCache;
+
+    /** <tt>true</tt> if memory accesses are traced (debug flag p). */
+    private boolean traceMemory;
+    /** <tt>true</tt> if instructions are disassembled (debug flag m or M). */
+    private boolean traceInstructions;
+    /** <tt>true</tt> if any kind of processor tracing is enabled. */
+    private boolean tracing;
+
+    /** <tt>true</tt> if hot code is run from translated basic blocks. */
+    private boolean usingBlocks;
+    /** Number of fetches of a block entry point before it is translated. */
+    private int blockThreshold;
+    /** Maximum number of instructions in a translated basic block. */
+    private static final int maxBlockLength = 64;
+    /**
+     * Number of times the pipe has been flushed, which happens before every
+     * interrupt handler runs.
+     */
+    private int pipeFlushes = 0;
+
+    /** The number of user ticks that may still pass without a check. */
+    private int burst = 0;
+    /** The number of user ticks run in this burst and not yet charged. */
+    private int burstTicks = 0;
+
+    /** The last instruction fetch and data translations. */
+    private TranslationMemo fetchMemo = new TranslationMemo();
+    private TranslationMemo dataMemo = new TranslationMemo();
+
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
 
+    /** The number of this processor. */
+    private int cpuID;
+    /** The kernel IPI handler. */
+    private Runnable ipiHandler = null;
+    /** <tt>true</tt> if an IPI has been posted but not yet taken. */
+    private boolean ipiPending = false;
+
+    /** The exception thrown by <tt>trap()</tt>. */
+    private MipsException exception = new MipsException();
+
     private static final char dbgProcessor = 'p';
     private static final char dbgDisassemble = 'm';
     private static final char dbgFullDisassemble = 'M';
 
+    private void flushPipe() {
+	pipeFlushes++;
+	invalidateTranslationMemos();
+	finishLoad();
+    }
+
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
-	    finishLoad();
+	    Machine.processor().flushPipe();
+	}
+
+	public void deliverIPI() {
+	    Processor cpu = Machine.processor();
+	    if (!cpu.ipiPending)
+		return;
+
+	    cpu.ipiPending = false;
+	    Machine.interrupt().clearIPI();
+	    if (privilege.stats.cpuIPIs != null)
+		privilege.stats.cpuIPIs[cpu.cpuID]++;
+
+	    cpu.flushPipe();
+
+	    if (cpu.ipiHandler != null)
+		cpu.ipiHandler.run();
 	}
     }
 
-    private class MipsException extends Exception {
-	public MipsException(int cause) {
-	    Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
+    /**
+     * Forget the memoized translations. This must be called whenever the page
+     * table or TLB changes, and whenever the kernel gets control, because the
+     * kernel may modify the entries of its page table in place (for example,
+     * to clear a used bit or invalidate a page).
+     */
+    private void invalidateTranslationMemos() {
+	fetchMemo.invalidate();
+	dataMemo.invalidate();
+    }
 
-	    this.cause = cause;
+    /**
+     * The last successful translation made through <tt>translate()</tt>. The
+     * memo stays valid only while user code runs without interruption, so its
+     * entry's used bit cannot be cleared behind its back.
+     */
+    private static class TranslationMemo {
+	void invalidate() {
+	    vpn = -1;
+	    entry = null;
+	}
+
+	int vpn = -1;
+	TranslationEntry entry = null;
+	int base;
+	boolean writable;
+    }
+
+    /**
+     * Prepare the preallocated <tt>MipsException</tt> to signal the specified
+     * exception, and return it so that the caller can throw it.
+     *
+     * @param	cause	the exception cause.
+     * @return	the exception to throw.
+     */
+    private MipsException trap(int cause) {
+	return exception.set(cause, false, 0);
+    }
+
+    /**
+     * Prepare the preallocated <tt>MipsException</tt> to signal the specified
+     * exception involving a bad virtual address, and return it so that the
+     * caller can throw it.
+     *
+     * @param	cause		the exception cause.
+     * @param	badVAddr	the virtual address that caused the exception.
+     * @return	the exception to throw.
+     */
+    private MipsException trap(int cause, int badVAddr) {
+	return exception.set(cause, true, badVAddr);
+    }
+
+    /**
+     * A user mode exception. Syscalls and TLB misses are frequent, so the
+     * processor throws a single preallocated instance that does not record a
+     * stack trace. This is safe because <tt>handle()</tt> copies the cause and
+     * bad address into registers before it calls into the kernel.
+     */
+    private class MipsException extends Exception {
+	public MipsException() {
+	    super(null, null, false, false);
 	}
 
-	public MipsException(int cause, int badVAddr) {
-	    this(cause);
+	private MipsException set(int cause, boolean hasBadVAddr,
+				  int badVAddr) {
+	    Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
 
-	    hasBadVAddr = true;
+	    this.cause = cause;
+	    this.hasBadVAddr = hasBadVAddr;
 	    this.badVAddr = badVAddr;
+	    return this;
 	}
 
 	public void handle() {
+	    invalidateTranslationMemos();
 	    writeRegister(regCause, cause);
 
 	    if (hasBadVAddr)
 		writeRegister(regBadVAddr, badVAddr);
 
-	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+	    if (traceInstructions)
 		System.out.println("exception: " + exceptionNames[cause]);
 
 	    finishLoad();
@@ -616,88 +1254,53 @@ public final class Processor {
 	    writeBack();
 	}	
 
-	private boolean test(int flag) {
+	boolean test(int flag) {
 	    return Lib.test(flag, flags);
 	}
 
-	private void fetch() throws MipsException {
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
-		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
-				 + "\t");
-
-	    value = readMem(registers[regPC], 4);
+	void fetch() throws MipsException {
+	    paddr = translate(registers[regPC], 4, false, fetchMemo);
+	    value = Lib.bytesToInt(mainMemory, paddr, 4);
+	    decoded = getDecoded(paddr, value);
 	}
 	
-	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
-
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
+	void decode() {
+	    // the register-independent fields come from the decode cache
+	    DecodedInstruction info = decoded;
+
+	    op = info.op;
+	    rs = info.rs;
+	    rt = info.rt;
+	    rd = info.rd;
+	    sh = info.sh;
+	    func = info.func;
+	    target = info.target;
+	    imm = info.imm;
 
 	    operation = info.operation;
 	    name = info.name;
 	    format = info.format;
 	    flags = info.flags;
 
+	    size = info.size;
+	    dstReg = info.dstReg;
+
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + info.branchOffset;
 	    else if (format == Mips.JFMT)
 		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -717,135 +1320,9 @@ public final class Processor {
 		src1 &= 0xFFFFFFFFL;
 		src2 &= 0xFFFFFFFFL;
 	    }	    
-
-	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
-		print();	    
-	}
-
-	private void print() {
-	    if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
-		!Lib.test(dbgFullDisassemble))
-		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
-				 + "\t");
-	    
-	    if (operation == Mips.INVALID) {
-		System.out.print("invalid: op=" + Lib.toHexString(op, 2) +
-				 " rs=" + Lib.toHexString(rs, 2) +
-				 " rt=" + Lib.toHexString(rt, 2) +
-				 " rd=" + Lib.toHexString(rd, 2) +
-				 " sh=" + Lib.toHexString(sh, 2) +
-				 " func=" + Lib.toHexString(func, 2) +
-				 "\n");
-		return;
-	    }
-
-	    int spaceIndex = name.indexOf(' ');
-	    Lib.assertTrue(spaceIndex!=-1 && spaceIndex==name.lastIndexOf(' '));
-
-	    String instname = name.substring(0, spaceIndex);
-	    char[] args = name.substring(spaceIndex+1).toCharArray();
-
-	    System.out.print(instname + "\t");
-
-	    int minCharsPrinted = 0, maxCharsPrinted = 0;
-
-	    for (int i=0; i<args.length; i++) {
-		switch (args[i]) {
-		case Mips.RS:
-		    System.out.print("$" + rs);
-		    minCharsPrinted += 2;
-		    maxCharsPrinted += 3;
-		    
-		    if (Lib.test(dbgFullDisassemble)) {
-			System.out.print("#0x" +
-					 Lib.toHexString(registers[rs]));
-			minCharsPrinted += 11;
-			maxCharsPrinted += 11;
-		    }
-		    break;
-		case Mips.RT:
-		    System.out.print("$" + rt);
-		    minCharsPrinted += 2;
-		    maxCharsPrinted += 3;
-
-		    if (Lib.test(dbgFullDisassemble) &&
-			(i!=0 || !test(Mips.DST)) &&
-			!test(Mips.DELAYEDLOAD)) {
-			System.out.print("#0x" +
-					 Lib.toHexString(registers[rt]));
-			minCharsPrinted += 11;
-			maxCharsPrinted += 11;
-		    }
-		    break;
-		case Mips.RETURNADDRESS:
-		    if (rd == 31)
-			continue;
-		case Mips.RD:
-		    System.out.print("$" + rd);
-		    minCharsPrinted += 2;
-		    maxCharsPrinted += 3;
-		    break;
-		case Mips.IMM:
-		    System.out.print(imm);
-		    minCharsPrinted += 1;
-		    maxCharsPrinted += 6;
-		    break;
-		case Mips.SHIFTAMOUNT:
-		    System.out.print(sh);
-		    minCharsPrinted += 1;
-		    maxCharsPrinted += 2;
-		    break;
-		case Mips.ADDR:
-		    System.out.print(imm + "($" + rs);
-		    minCharsPrinted += 4;
-		    maxCharsPrinted += 5;
-
-		    if (Lib.test(dbgFullDisassemble)) {
-			System.out.print("#0x" +
-					 Lib.toHexString(registers[rs]));
-			minCharsPrinted += 11;
-			maxCharsPrinted += 11;
-		    }
-		    
-		    System.out.print(")");
-		    break;
-		case Mips.TARGET:
-		    System.out.print("0x" + Lib.toHexString(jtarget));
-		    minCharsPrinted += 10;
-		    maxCharsPrinted += 10;
-		    break;
-		default:
-		    Lib.assertTrue(false);    
-		}
-		if (i+1 < args.length) {
-		    System.out.print(", ");
-		    minCharsPrinted += 2;
-		    maxCharsPrinted += 2;
-		}
-		else {
-		    // most separation possible is tsi, 5+1+1=7,
-		    // thankfully less than 8 (makes this possible)
-		    Lib.assertTrue(maxCharsPrinted-minCharsPrinted < 8);
-		    // longest string is stj, which is 40-42 chars w/ -d M;
-		    // go for 48
-		    while ((minCharsPrinted%8) != 0) {
-			System.out.print(" ");
-			minCharsPrinted++;
-			maxCharsPrinted++;
-		    }
-		    while (minCharsPrinted < 48) {
-			System.out.print("\t");
-			minCharsPrinted += 8;
-		    }
-		}
-	    }
-
-	    if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
-		!Lib.test(dbgFullDisassemble))
-		System.out.print("\n");
 	}
 
-	private void execute() throws MipsException {
+	void execute() throws MipsException {
 	    int value;
 	    int preserved;
 	    
@@ -862,15 +1339,13 @@ public final class Processor {
 		registers[regHi] = (int) Lib.extract(dst, 32, 32);
 		break;
 	    case Mips.DIV:
-		try {
-		    registers[regLo] = (int) (src1 / src2);
-		    registers[regHi] = (int) (src1 % src2);
-		    if (registers[regLo]*src2 + registers[regHi] != src1)
-			throw new ArithmeticException();
-		}
-		catch (ArithmeticException e) {
-		    throw new MipsException(exceptionOverflow);
-		}
+		if (src2 == 0)
+		    throw trap(exceptionOverflow);
+
+		registers[regLo] = (int) (src1 / src2);
+		registers[regHi] = (int) (src1 % src2);
+		if (registers[regLo]*src2 + registers[regHi] != src1)
+		    throw trap(exceptionOverflow);
 		break;
 
 	    case Mips.SLL:
@@ -939,7 +1414,7 @@ public final class Processor {
 		break;
 
 	    case Mips.SYSCALL:
-		throw new MipsException(exceptionSyscall);
+		throw trap(exceptionSyscall);
 
 	    case Mips.LOAD:
 		value = readMem(addr, size);
@@ -1009,17 +1484,17 @@ public final class Processor {
 		System.err.println("Warning: encountered unimplemented inst");
 		
 	    case Mips.INVALID:
-		throw new MipsException(exceptionIllegalInstruction);
+		throw trap(exceptionIllegalInstruction);
 
 	    default:
 		Lib.assertNotReached();
 	    }
 	}
 
-	private void writeBack() throws MipsException {
+	void writeBack() throws MipsException {
 	    // if instruction is signed, but carry bit !+ sign bit, throw
 	    if (test(Mips.OVERFLOW) && Lib.test(dst,31) != Lib.test(dst,32))
-		throw new MipsException(exceptionOverflow);
+		throw trap(exceptionOverflow);
 
 	    if (test(Mips.DELAYEDLOAD))
 		delayedLoad(dstReg, (int) dst, mask);
@@ -1032,26 +1507,16 @@ public final class Processor {
 	    if (test(Mips.DST) && dstReg != 0)
 		registers[dstReg] = (int) dst;
 
-	    if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
-		if (Lib.test(dbgFullDisassemble)) {
-		    System.out.print("#0x" + Lib.toHexString((int) dst));
-		    if (test(Mips.DELAYEDLOAD))
-			System.out.print(" (delayed load)");
-		}
-	    }
-
 	    if (test(Mips.BRANCH) && branch) {
 		nextPC = jtarget;
 	    }
 
 	    advancePC(nextPC);
-
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
-		System.out.print("\n");
 	}
     
 	// state used to execute a single instruction
+	DecodedInstruction decoded;
+	int paddr;
 	int value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
@@ -1063,6 +1528,582 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * An <tt>Instruction</tt> that also prints the disassembly and memory
+     * trace requested by the <tt>p</tt>, <tt>m</tt>, and <tt>M</tt> debug
+     * flags. Only used when one of those flags is set, so the normal
+     * interpreter does not test them on every instruction.
+     */
+    private class TracedInstruction extends Instruction {
+	void fetch() throws MipsException {
+	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
+		Lib.test(dbgFullDisassemble))
+		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
+				 + "\t");
+
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\treadMem vaddr=0x" +
+				   Lib.toHexString(registers[regPC]) +
+				   ", size=4");
+
+	    super.fetch();
+
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\t\tvalue read=0x" +
+				   Lib.toHexString(value, 8));
+	}
+
+	void decode() {
+	    super.decode();
+
+	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+		print();	    
+	}
+
+	private void print() {
+	    if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
+		!Lib.test(dbgFullDisassemble))
+		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
+				 + "\t");
+	    
+	    if (operation == Mips.INVALID) {
+		System.out.print("invalid: op=" + Lib.toHexString(op, 2) +
+				 " rs=" + Lib.toHexString(rs, 2) +
+				 " rt=" + Lib.toHexString(rt, 2) +
+				 " rd=" + Lib.toHexString(rd, 2) +
+				 " sh=" + Lib.toHexString(sh, 2) +
+				 " func=" + Lib.toHexString(func, 2) +
+				 "\n");
+		return;
+	    }
+
+	    int spaceIndex = name.indexOf(' ');
+	    Lib.assertTrue(spaceIndex!=-1 && spaceIndex==name.lastIndexOf(' '));
+
+	    String instname = name.substring(0, spaceIndex);
+	    char[] args = name.substring(spaceIndex+1).toCharArray();
+
+	    System.out.print(instname + "\t");
+
+	    int minCharsPrinted = 0, maxCharsPrinted = 0;
+
+	    for (int i=0; i<args.length; i++) {
+		switch (args[i]) {
+		case Mips.RS:
+		    System.out.print("$" + rs);
+		    minCharsPrinted += 2;
+		    maxCharsPrinted += 3;
+		    
+		    if (Lib.test(dbgFullDisassemble)) {
+			System.out.print("#0x" +
+					 Lib.toHexString(registers[rs]));
+			minCharsPrinted += 11;
+			maxCharsPrinted += 11;
+		    }
+		    break;
+		case Mips.RT:
+		    System.out.print("$" + rt);
+		    minCharsPrinted += 2;
+		    maxCharsPrinted += 3;
+
+		    if (Lib.test(dbgFullDisassemble) &&
+			(i!=0 || !test(Mips.DST)) &&
+			!test(Mips.DELAYEDLOAD)) {
+			System.out.print("#0x" +
+					 Lib.toHexString(registers[rt]));
+			minCharsPrinted += 11;
+			maxCharsPrinted += 11;
+		    }
+		    break;
+		case Mips.RETURNADDRESS:
+		    if (rd == 31)
+			continue;
+		case Mips.RD:
+		    System.out.print("$" + rd);
+		    minCharsPrinted += 2;
+		    maxCharsPrinted += 3;
+		    break;
+		case Mips.IMM:
+		    System.out.print(imm);
+		    minCharsPrinted += 1;
+		    maxCharsPrinted += 6;
+		    break;
+		case Mips.SHIFTAMOUNT:
+		    System.out.print(sh);
+		    minCharsPrinted += 1;
+		    maxCharsPrinted += 2;
+		    break;
+		case Mips.ADDR:
+		    System.out.print(imm + "($" + rs);
+		    minCharsPrinted += 4;
+		    maxCharsPrinted += 5;
+
+		    if (Lib.test(dbgFullDisassemble)) {
+			System.out.print("#0x" +
+					 Lib.toHexString(registers[rs]));
+			minCharsPrinted += 11;
+			maxCharsPrinted += 11;
+		    }
+		    
+		    System.out.print(")");
+		    break;
+		case Mips.TARGET:
+		    System.out.print("0x" + Lib.toHexString(jtarget));
+		    minCharsPrinted += 10;
+		    maxCharsPrinted += 10;
+		    break;
+		default:
+		    Lib.assertTrue(false);    
+		}
+		if (i+1 < args.length) {
+		    System.out.print(", ");
+		    minCharsPrinted += 2;
+		    maxCharsPrinted += 2;
+		}
+		else {
+		    // most separation possible is tsi, 5+1+1=7,
+		    // thankfully less than 8 (makes this possible)
+		    Lib.assertTrue(maxCharsPrinted-minCharsPrinted < 8);
+		    // longest string is stj, which is 40-42 chars w/ -d M;
+		    // go for 48
+		    while ((minCharsPrinted%8) != 0) {
+			System.out.print(" ");
+			minCharsPrinted++;
+			maxCharsPrinted++;
+		    }
+		    while (minCharsPrinted < 48) {
+			System.out.print("\t");
+			minCharsPrinted += 8;
+		    }
+		}
+	    }
+
+	    if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
+		!Lib.test(dbgFullDisassemble))
+		System.out.print("\n");
+	}
+
+	void writeBack() throws MipsException {
+	    super.writeBack();
+
+	    if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
+		if (Lib.test(dbgFullDisassemble)) {
+		    System.out.print("#0x" + Lib.toHexString((int) dst));
+		    if (test(Mips.DELAYEDLOAD))
+			System.out.print(" (delayed load)");
+		}
+	    }
+
+	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
+		Lib.test(dbgFullDisassemble))
+		System.out.print("\n");
+	}
+    }
+
+    /**
+     * The register-independent part of a decoded instruction. These fields
+     * depend only on the instruction word, so they are computed once per word
+     * and cached in <tt>decodeCache</tt>.
+     */
+    private static class DecodedInstruction {
+	void decode(int value) {
+	    this.value = value;
+	    block = null;
+	    heat = 0;
+
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+	    imm = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // branch displacement uses the sign-extended immediate
+	    branchOffset = imm<<2;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags)) {
+		imm &= 0xFFFF;
+	    }
+	}
+
+	int value, op, rs, rt, rd, sh, func, target, imm;
+	int operation, format, flags;
+	String name;
+
+	int size, dstReg, branchOffset;
+
+	/** The translated block starting here, if any. */
+	BasicBlock block;
+	/** The number of times this has been fetched before translation. */
+	int heat;
+    }
+
+    /**
+     * A translated basic block: a run of straight-line instructions on a
+     * single physical page.
+     */
+    private class BasicBlock {
+	BasicBlock(TranslatedInstruction[] instructions, int length) {
+	    this.instructions = instructions;
+	    this.length = length;
+	}
+
+	final TranslatedInstruction[] instructions;
+	final int length;
+    }
+
+    /**
+     * Translate a single decoded instruction into a specialized form. The
+     * translated form must have exactly the same effect as running the
+     * instruction through <tt>Instruction</tt>: source registers are read
+     * before the pending delayed load completes, and the PC is advanced last.
+     * Operations that can overflow, link, or need the unaligned access logic
+     * are left to the interpreter.
+     *
+     * @param	info	the decoded instruction.
+     * @return	the translated instruction.
+     */
+    private TranslatedInstruction translateInstruction(DecodedInstruction info) {
+	if (Lib.test(Mips.OVERFLOW, info.flags))
+	    return new InterpretedInstruction(info);
+	
+	switch (info.operation) {
+	case Mips.ADD:
+	    return new TranslatedALU(info) {
+		long compute(long src1, long src2) { return src1 + src2; }
+	    };
+	case Mips.SUB:
+	    return new TranslatedALU(info) {
+		long compute(long src1, long src2) { return src1 - src2; }
+	    };
+	case Mips.SLL:
+	    return new TranslatedALU(info) {
+		long compute(long src1, long src2) {
+		    return src2 << (src1&0x1F);
+		}
+	    };
+	case Mips.SRA:
+	    return new TranslatedALU(info) {
+		long compute(long src1, long src2) {
+		    return src2 >> (src1&0x1F);
+		}
+	    };
+	case Mips.SRL:
+	    return new TranslatedALU(info) {
+		long compute(long src1, long src2) {
+		    return src2 >>> (src1&0x1F);
+		}
+	    };
+	case Mips.SLT:
+	    return new TranslatedALU(info) {
+		long compute(long src1, long src2) {
+		    return (src1<src2) ? 1 : 0;
+		}
+	    };
+	case Mips.AND:
+	    return new TranslatedALU(info) {
+		long compute(long src1, long src2) { return src1 & src2; }
+	    };
+	case Mips.OR:
+	    return new TranslatedALU(info) {
+		long compute(long src1, long src2) { return src1 | src2; }
+	    };
+	case Mips.NOR:
+	    return new TranslatedALU(info) {
+		long compute(long src1, long src2) { return ~(src1 | src2); }
+	    };
+	case Mips.XOR:
+	    return new TranslatedALU(info) {
+		long compute(long src1, long src2) { return src1 ^ src2; }
+	    };
+	case Mips.LUI:
+	    return new TranslatedALU(info) {
+		long compute(long src1, long src2) { return imm << 16; }
+	    };
+	case Mips.MFLO:
+	    return new TranslatedALU(info) {
+		long compute(long src1, long src2) { return registers[regLo]; }
+	    };
+	case Mips.MFHI:
+	    return new TranslatedALU(info) {
+		long compute(long src1, long src2) { return registers[regHi]; }
+	    };
+	case Mips.MULT:
+	    return new TranslatedMultiply(info);
+	case Mips.LOAD:
+	    return new TranslatedLoad(info);
+	case Mips.STORE:
+	    return new TranslatedStore(info);
+	case Mips.BEQ:
+	case Mips.BNE:
+	case Mips.BLEZ:
+	case Mips.BGTZ:
+	case Mips.BLTZ:
+	case Mips.BGEZ:
+	    if (Lib.test(Mips.LINK, info.flags))
+		break;
+	    return new TranslatedBranch(info);
+	case Mips.JUMP:
+	    return new TranslatedJump(info);
+	}
+
+	return new InterpretedInstruction(info);
+    }
+
+    /**
+     * Finish executing a translated instruction that writes a register:
+     * complete the pending delayed load, write the destination, and advance
+     * the PC to the next sequential instruction.
+     */
+    private void retire(int dstReg, int dst) {
+	finishLoad();
+
+	if (dstReg != 0)
+	    registers[dstReg] = dst;
+
+	advancePC(registers[regNextPC]+4);
+    }
+
+    /**
+     * An instruction translated for use in a <tt>BasicBlock</tt>.
+     */
+    private abstract class TranslatedInstruction {
+	TranslatedInstruction(DecodedInstruction info) {
+	    value = info.value;
+	    rs = info.rs;
+	    rt = info.rt;
+	    sh = info.sh;
+	    imm = info.imm;
+	    dstReg = info.dstReg;
+	    unsigned = Lib.test(Mips.UNSIGNED, info.flags);
+	}
+
+	/**
+	 * Execute this instruction, including the write back and PC update.
+	 *
+	 * @param	inst	the interpreter, for instructions that need it.
+	 */
+	abstract void run(Instruction inst) throws MipsException;
+
+	/** The instruction word this was translated from. */
+	final int value;
+	final int rs, rt, sh, imm, dstReg;
+	final boolean unsigned;
+    }
+
+    /** An instruction that is simply handed to the interpreter. */
+    private class InterpretedInstruction extends TranslatedInstruction {
+	InterpretedInstruction(DecodedInstruction info) {
+	    super(info);
+	    this.info = info;
+	}
+
+	void run(Instruction inst) throws MipsException {
+	    inst.value = value;
+	    inst.decoded = info;
+	    inst.decode();
+	    inst.execute();
+	    inst.writeBack();
+	}
+
+	private final DecodedInstruction info;
+    }
+
+    /** A register or immediate ALU operation with a destination register. */
+    private abstract class TranslatedALU extends TranslatedInstruction {
+	TranslatedALU(DecodedInstruction info) {
+	    super(info);
+	    shiftSource = Lib.test(Mips.SRC1SH, info.flags);
+	    immSource = Lib.test(Mips.SRC2IMM, info.flags);
+	}
+
+	void run(Instruction inst) {
+	    long src1 = shiftSource ? sh : registers[rs];
+	    long src2 = immSource ? imm : registers[rt];
+
+	    if (unsigned) {
+		src1 &= 0xFFFFFFFFL;
+		src2 &= 0xFFFFFFFFL;
+	    }
+
+	    retire(dstReg, (int) compute(src1, src2));
+	}
+
+	abstract long compute(long src1, long src2);
+
+	private final boolean shiftSource, immSource;
+    }
+
+    private class TranslatedMultiply extends TranslatedInstruction {
+	TranslatedMultiply(DecodedInstruction info) {
+	    super(info);
+	}
+
+	void run(Instruction inst) {
+	    long src1 = registers[rs];
+	    long src2 = registers[rt];
+
+	    if (unsigned) {
+		src1 &= 0xFFFFFFFFL;
+		src2 &= 0xFFFFFFFFL;
+	    }
+
+	    long dst = src1 * src2;
+	    registers[regLo] = (int) Lib.extract(dst, 0, 32);
+	    registers[regHi] = (int) Lib.extract(dst, 32, 32);
+
+	    finishLoad();
+	    advancePC(registers[regNextPC]+4);
+	}
+    }
+
+    private class TranslatedLoad extends TranslatedInstruction {
+	TranslatedLoad(DecodedInstruction info) {
+	    super(info);
+	    size = info.size;
+	}
+
+	void run(Instruction inst) throws MipsException {
+	    int value = readMem(registers[rs] + imm, size);
+
+	    if (!unsigned)
+		value = Lib.extend(value, 0, size*8);
+
+	    delayedLoad(dstReg, value, 0xFFFFFFFF);
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	private final int size;
+    }
+
+    private class TranslatedStore extends TranslatedInstruction {
+	TranslatedStore(DecodedInstruction info) {
+	    super(info);
+	    size = info.size;
+	}
+
+	void run(Instruction inst) throws MipsException {
+	    writeMem(registers[rs] + imm, size, registers[rt]);
+
+	    finishLoad();
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	private final int size;
+    }
+
+    private class TranslatedBranch extends TranslatedInstruction {
+	TranslatedBranch(DecodedInstruction info) {
+	    super(info);
+	    operation = info.operation;
+	    branchOffset = info.branchOffset;
+	}
+
+	void run(Instruction inst) {
+	    int src1 = registers[rs];
+	    int src2 = registers[rt];
+	    boolean branch;
+
+	    switch (operation) {
+	    case Mips.BEQ:
+		branch = (src1 == src2);
+		break;
+	    case Mips.BNE:
+		branch = (src1 != src2);
+		break;
+	    case Mips.BGEZ:
+		branch = (src1 >= 0);
+		break;		
+	    case Mips.BGTZ:
+		branch = (src1 > 0);
+		break;		
+	    case Mips.BLEZ:
+		branch = (src1 <= 0);
+		break;		
+	    default:
+		branch = (src1 < 0);
+		break;
+	    }
+
+	    int nextPC = registers[regNextPC];
+
+	    finishLoad();
+	    advancePC(branch ? nextPC + branchOffset : nextPC + 4);
+	}
+
+	private final int operation, branchOffset;
+    }
+
+    private class TranslatedJump extends TranslatedInstruction {
+	TranslatedJump(DecodedInstruction info) {
+	    super(info);
+	    register = (info.format == Mips.RFMT);
+	    link = Lib.test(Mips.LINK, info.flags);
+	    target = info.target;
+	}
+
+	void run(Instruction inst) {
+	    int nextPC = registers[regNextPC];
+	    int jtarget;
+
+	    if (register)
+		jtarget = registers[rs];
+	    else
+		jtarget = (nextPC&0xF0000000) | (target<<2);
+
+	    finishLoad();
+
+	    if (link && dstReg != 0)
+		registers[dstReg] = nextPC+4;
+
+	    advancePC(jtarget);
+	}
+
+	private final boolean register, link;
+	private final int target;
+    }
+
     private static class Mips {
 	Mips() {
 	}
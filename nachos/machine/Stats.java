@@ -27,8 +27,51 @@ public final class Stats {
 			   + ", writes " + numConsoleWrites);
 	System.out.println("Paging: page faults " + numPageFaults
 			   + ", TLB misses " + numTLBMisses);
+	int first = Math.max(numProcessRecords - processRecords.length, 0);
+	if (first > 0)
+	    System.out.println("(TLB misses of " + first
+			       + " earlier processes not kept)");
+	for (int i=first; i<numProcessRecords; i++)
+	    System.out.println(processRecords[i % processRecords.length]);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+
+	if (numLoadSamples > 0)
+	    System.out.println("Scheduling: steals " + numSteals
+			       + ", average load imbalance "
+			       + (double) totalLoadImbalance / numLoadSamples);
+
+	if (cpuKernelTicks != null) {
+	    for (int i=0; i<cpuKernelTicks.length; i++)
+		System.out.println("CPU " + i + ": ticks kernel "
+				   + cpuKernelTicks[i] + ", user "
+				   + cpuUserTicks[i] + ", IPIs "
+				   + cpuIPIs[i]);
+	}
+    }
+
+    /**
+     * Record the TLB misses of a user process that has finished, to be
+     * printed with the other statistics. Only the most recent
+     * <tt>maxProcessRecords</tt> processes are kept.
+     *
+     * @param	process	a name that identifies the process.
+     * @param	misses	the number of TLB misses the process took.
+     */
+    public void addProcessTLBMisses(String process, int misses) {
+	processRecords[numProcessRecords++ % processRecords.length] =
+	    "Process " + process + ": TLB misses " + misses;
+    }
+
+    /**
+     * Start keeping per-processor tick counts.
+     *
+     * @param	numCPUs	the number of processors.
+     */
+    void setNumCPUs(int numCPUs) {
+	cpuKernelTicks = new long[numCPUs];
+	cpuUserTicks = new long[numCPUs];
+	cpuIPIs = new int[numCPUs];
     }
 
     /**
@@ -57,6 +100,42 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /**
+     * The simulated time each processor has spent in kernel mode, or
+     * <tt>null</tt> if there is only one processor.
+     */
+    public long[] cpuKernelTicks = null;
+    /**
+     * The simulated time each processor has spent in user mode, or
+     * <tt>null</tt> if there is only one processor.
+     */
+    public long[] cpuUserTicks = null;
+    /**
+     * The number of interprocessor interrupts each processor has taken, or
+     * <tt>null</tt> if there is only one processor.
+     */
+    public int[] cpuIPIs = null;
+    /**
+     * The number of finished processes whose TLB misses are kept for
+     * <tt>print()</tt>.
+     */
+    public static final int maxProcessRecords = 16;
+    /** The most recent per-process TLB miss lines, in a ring. */
+    private String[] processRecords = new String[maxProcessRecords];
+    /** The number of processes whose TLB misses have been recorded. */
+    private int numProcessRecords = 0;
+    /**
+     * The number of times a processor took a thread from another processor's
+     * ready queue.
+     */
+    public int numSteals = 0;
+    /**
+     * The sum, over every scheduling decision sampled by the kernel, of the
+     * difference between the longest and the shortest ready queue.
+     */
+    public long totalLoadImbalance = 0;
+    /** The number of scheduling decisions sampled for load imbalance. */
+    public long numLoadSamples = 0;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
@@ -6,6 +6,7 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +15,16 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * Only one of these JVM threads runs at a time, and a context switch hands
+ * off from one to the next. By default the hand-off waits and notifies on
+ * the monitor of the TCB being switched to. If <tt>TCB.parkThreads</tt> is
+ * set, the hand-off uses <tt>LockSupport.park()</tt> and <tt>unpark()</tt>
+ * instead, which needs no monitor and wakes only the thread being switched
+ * to. The maximum number of threads is <tt>TCB.maxThreads</tt>, and
+ * <tt>TCB.stackSize</tt> (in bytes) sets the stack size of each new JVM
+ * thread, so that kernels with many threads can use small stacks.
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +51,14 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	parkThreads = Config.getBoolean("TCB.parkThreads", false);
+	threadLimit = Config.getInteger("TCB.maxThreads", maxThreads);
+	stackSize = Config.getInteger("TCB.stackSize", 0);
+	spinLimit = Config.getInteger("TCB.spinLimit",
+				      Runtime.getRuntime().availableProcessors() > 1 ?
+				      defaultSpinLimit : 0);
+	Lib.assertTrue(threadLimit > 0 && stackSize >= 0);
     }
     
     /**
@@ -66,7 +85,7 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() < threadLimit);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -94,7 +113,13 @@ public final class TCB {
 		};
 
 	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
+		    public void run() {
+			if (stackSize == 0)
+			    javaThread = new Thread(tcbTarget);
+			else
+			    javaThread = new Thread(null, tcbTarget,
+						    "TCB", stackSize);
+		    }
 		});
 
 	    /* The Java thread hasn't yet started, but we need to get it
@@ -287,7 +312,24 @@ public final class TCB {
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
      */
-    private synchronized void waitForInterrupt() {
+    private void waitForInterrupt() {
+	if (parkThreads) {
+	    /* The TCB we switched to often switches back soon, so spin for a
+	     * while before parking. A stale permit or a spurious wakeup only
+	     * sends us around the loop again, since running is volatile.
+	     */
+	    for (int i=0; i<spinLimit && !running; i++)
+		Thread.onSpinWait();
+	    
+	    while (!running)
+		LockSupport.park(this);
+	}
+	else {
+	    waitOnMonitor();
+	}
+    }
+
+    private synchronized void waitOnMonitor() {
 	while (!running) {
 	    try { wait(); }
 	    catch (InterruptedException e) { }
@@ -300,7 +342,17 @@ public final class TCB {
      * starting and destroying TCBs, as well as in context switching to this
      * TCB.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
+	if (parkThreads) {
+	    running = true;
+	    LockSupport.unpark(javaThread);
+	}
+	else {
+	    notifyMonitor();
+	}
+    }
+
+    private synchronized void notifyMonitor() {
 	running = true;
 	notify();
     }
@@ -327,11 +379,21 @@ public final class TCB {
     }
 
     /**
-     * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * The default maximum number of started, non-destroyed TCB's that can be
+     * in existence.
      */
     public static final int maxThreads = 250;
 
+    /** The maximum number of started, non-destroyed TCB's. */
+    private static int threadLimit = maxThreads;
+    /** <tt>true</tt> if context switches park and unpark JVM threads. */
+    private static boolean parkThreads = false;
+    /** The stack size of new JVM threads, or 0 for the JVM default. */
+    private static int stackSize = 0;
+    /** How many times a parking TCB checks its flag before it parks. */
+    private static int spinLimit = 0;
+    private static final int defaultSpinLimit = 1 << 14;
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -387,8 +449,12 @@ public final class TCB {
      * when the associated Java thread ought to run ASAP. When starting or
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
+     *
+     * <p>
+     * The flag is volatile so that, when parking is used, a TCB that sees it
+     * set also sees everything the TCB that set it did before.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -48,6 +48,7 @@ public final class TranslationEntry {
 	readOnly = entry.readOnly;
 	used = entry.used;
 	dirty = entry.dirty;
+	asid = entry.asid;
     }
 
     /** The virtual page number. */
@@ -78,4 +79,11 @@ public final class TranslationEntry {
      * user program.
      */
     public boolean dirty;
+
+    /**
+     * The address space this translation belongs to. A TLB entry only
+     * matches while its ASID equals the processor's current ASID; page
+     * tables ignore it.
+     */
+    public int asid;
 }
@@ -158,6 +158,24 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Return the number of user ticks that can pass before an interrupt
+	 * might be due. The processor may run that many instructions and then
+	 * charge them all at once with <tt>tickUser()</tt>.
+	 *
+	 * @return	the number of user ticks that need no interrupt check.
+	 */
+	public int userBurst();
+
+	/**
+	 * Advance the simulated time by the specified number of user ticks,
+	 * without checking for interrupts.
+	 *
+	 * @param	ticks	the number of user ticks, which must be no more
+	 *			than <tt>userBurst()</tt> returned.
+	 */
+	public void tickUser(int ticks);
     }
 
     /**
@@ -170,6 +188,12 @@ public abstract class Privilege {
 	 * mode.
 	 */
 	public void flushPipe();
+
+	/**
+	 * If the current processor has a pending interprocessor interrupt,
+	 * flush its pipeline and invoke its IPI handler.
+	 */
+	public void deliverIPI();
     }
 
     /**
@@ -0,0 +1,38 @@
+/* sysbench.c
+ *	Benchmark the cost of a system call round trip.
+ *
+ *	Issues a large number of syscalls that do no real work (zero-length
+ *	writes to standard output), so that nearly all of the time is spent
+ *	trapping into the kernel and returning. The kernel starts its first
+ *	program without arguments, so "nachos -x sysbench.coff" always runs
+ *	the default count. To choose the count, start the shell with "nachos
+ *	-x sh.coff" and run "sysbench [count]" at its prompt. Compare the host
+ *	run times of such sessions under "time"; the simulated tick counts
+ *	printed at halt should not change.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define DEFAULT_COUNT	100000
+
+char buf[1];
+
+int main(int argc, char** argv)
+{
+  int count, i;
+
+  count = DEFAULT_COUNT;
+  if (argc > 1)
+    count = atoi(argv[1]);
+
+  for (i=0; i<count; i++)
+    write(fdStandardOutput, buf, 0);
+
+  printf("sysbench: %d syscalls\n", count);
+
+  halt();
+  /* not reached */
+  return 0;
+}
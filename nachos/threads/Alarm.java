@@ -2,13 +2,19 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import javax.crypto.Mac;
-import java.util.Comparator;
-import java.util.PriorityQueue;
-
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Pending timeouts are kept in a hashed timing wheel: a ring of
+ * <tt>wheelSize</tt> buckets, each covering <tt>slotTicks</tt> ticks, so that a
+ * timeout due at time <i>t</i> is in bucket
+ * <tt>(<i>t</i> / slotTicks) % wheelSize</tt>. Scheduling and cancelling a
+ * timeout are constant time. Each timer interrupt walks only the buckets for
+ * the ticks since the previous one, and expires their due timeouts as one
+ * batch, in order of wake time. Timeouts that are a whole turn of the wheel or
+ * more away stay in their bucket until their turn comes round.
  */
 public class Alarm {
     /**
@@ -19,6 +25,9 @@ public class Alarm {
      * <b>Note</b>: Nachos will not function correctly with more than one alarm.
      */
     public Alarm() {
+        for (int i = 0; i < wheelSize; i++)
+            buckets[i] = new Timeout(null, null);
+
         Machine.timer().setInterruptHandler(new Runnable() {
             public void run() {
                 timerInterrupt();
@@ -29,25 +38,21 @@ public class Alarm {
     /**
      * The timer interrupt handler. This is called by the machine's timer
      * periodically (approximately every 500 clock ticks). Causes the current thread
-     * to yield, forcing a context switch if there is another thread that should be
-     * run.
+     * to yield if it has used up its quantum and there is another thread that
+     * should be run.
      */
     public void timerInterrupt() {
 
         boolean initStatus = Machine.interrupt().disable();
 
-        while (!waitQueue.isEmpty()) {
-            PriorThread priorThread = waitQueue.peek();
-            if (priorThread.priority <= Machine.timer().getTime()) {
-                waitQueue.poll();
-                priorThread.thread.ready();
-            } else
-                break;
-
-        }
+        long now = Machine.timer().getTime();
+        if (pending > 0)
+            expire(now);
+        else
+            nextSlot = now / slotTicks;
 
         Machine.interrupt().restore(initStatus);
-        KThread.currentThread().yield();
+        KThread.preempt();
 
     }
 
@@ -64,43 +69,296 @@ public class Alarm {
      * @see nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
-        // for now, cheat just to get something working (busy waiting is bad)
-        // long wakeTime = Machine.timer().getTime() + x;
-        // while (wakeTime > Machine.timer().getTime())
-        // KThread.yield();
-
         boolean currentStatus = Machine.interrupt().disable();
 
-        long wakeTime = Machine.timer().getTime() + x;
-
         KThread currentThread = KThread.currentThread();
-        PriorThread priorThread = new PriorThread(currentThread, wakeTime);
-        waitQueue.add(priorThread);
-        currentThread.sleep();
+        if (currentThread.alarmTimeout == null)
+            currentThread.alarmTimeout = new Timeout(null, currentThread);
+
+        add(currentThread.alarmTimeout, x);
+        KThread.sleep();
 
         Machine.interrupt().restore(currentStatus);
     }
 
-    private PriorityQueue<PriorThread> waitQueue = new PriorityQueue<>(new PriorThread.Comp());
+    /**
+     * Run <tt>handler</tt> in the first timer interrupt where
+     *
+     * <p>
+     * <blockquote> (current time) >= (schedule called time)+(x) </blockquote>
+     *
+     * <p>
+     * unless the returned timeout is cancelled first. The handler runs with
+     * interrupts disabled, so it must not block.
+     *
+     * @param x       the minimum number of clock ticks to wait.
+     * @param handler the action to run when the timeout expires.
+     * @return a handle that can cancel the timeout.
+     */
+    public Timeout schedule(long x, Runnable handler) {
+        Lib.assertTrue(handler != null);
+
+        boolean intStatus = Machine.interrupt().disable();
 
-}
+        Timeout timeout = new Timeout(handler, null);
+        add(timeout, x);
+
+        Machine.interrupt().restore(intStatus);
+        return timeout;
+    }
+
+    /**
+     * Put the current thread to sleep until it is handed access by
+     * <tt>waitQueue</tt>, or until <i>x</i> ticks have passed, in which case it
+     * is removed from <tt>waitQueue</tt>. The current thread must already have
+     * called <tt>waitForAccess()</tt> on <tt>waitQueue</tt>, and interrupts
+     * must be disabled.
+     *
+     * @param waitQueue the queue the current thread is waiting on.
+     * @param x         the maximum number of clock ticks to wait.
+     * @return <tt>true</tt> if the thread was handed access, or <tt>false</tt>
+     *         if the wait timed out.
+     */
+    boolean sleepOn(ThreadQueue waitQueue, long x) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        QueueWait wait = new QueueWait(waitQueue, KThread.currentThread());
+        Timeout timeout = new Timeout(wait, null);
+        add(timeout, x);
+
+        KThread.sleep();
+
+        timeout.cancel();
+        return !wait.timedOut;
+    }
+
+    /**
+     * Add a timeout to the bucket of its wake time. A timeout due before the
+     * buckets the next timer interrupt walks goes in the first of them.
+     */
+    private void add(Timeout timeout, long x) {
+        Lib.assertTrue(timeout.prev == null);
+
+        timeout.wakeTime = Machine.timer().getTime() + x;
+        long slot = Math.max(timeout.wakeTime / slotTicks, nextSlot);
+        timeout.linkBefore(buckets[(int) (slot & (wheelSize - 1))]);
+        pending++;
+    }
+
+    /**
+     * Expire every timeout due at or before <tt>now</tt>.
+     */
+    private void expire(long now) {
+        long lastSlot = now / slotTicks;
+        long firstSlot = Math.max(nextSlot, lastSlot - wheelSize + 1);
+
+        // gather the due timeouts in order of wake time; each bucket is
+        // mostly in order already, so the insertion sort rarely moves far
+        for (long slot = firstSlot; slot <= lastSlot; slot++) {
+            Timeout bucket = buckets[(int) (slot & (wheelSize - 1))];
+            for (Timeout timeout = bucket.next; timeout != bucket;) {
+                Timeout next = timeout.next;
+                if (timeout.wakeTime <= now) {
+                    timeout.unlink();
+
+                    Timeout after = expired;
+                    while (after.prev != expired &&
+                           after.prev.wakeTime > timeout.wakeTime)
+                        after = after.prev;
+                    timeout.linkBefore(after);
+                }
+                timeout = next;
+            }
+        }
+
+        // the last slot may still hold timeouts due later in it
+        nextSlot = lastSlot;
+
+        while (expired.next != expired) {
+            Timeout timeout = expired.next;
+            timeout.unlink();
+            pending--;
+            timeout.fire();
+        }
+    }
+
+    /**
+     * A pending call to a handler, or wake-up of a sleeping thread, at a
+     * specific time. Timeouts are intrusive list nodes, so adding one to and
+     * removing one from its bucket allocates nothing.
+     */
+    public class Timeout {
+        private Timeout(Runnable handler, KThread thread) {
+            this.handler = handler;
+            this.thread = thread;
+            prev = next = (handler == null && thread == null) ? this : null;
+        }
+
+        /**
+         * Cancel this timeout, if it has not expired yet.
+         *
+         * @return <tt>true</tt> if the timeout was cancelled, or
+         *         <tt>false</tt> if it had already expired or been cancelled.
+         */
+        public boolean cancel() {
+            boolean intStatus = Machine.interrupt().disable();
+
+            boolean wasPending = isPending();
+            if (wasPending) {
+                unlink();
+                pending--;
+            }
+
+            Machine.interrupt().restore(intStatus);
+            return wasPending;
+        }
+
+        /**
+         * Test if this timeout has neither expired nor been cancelled.
+         *
+         * @return <tt>true</tt> if this timeout is still pending.
+         */
+        public boolean isPending() {
+            return prev != null;
+        }
+
+        /**
+         * Return the time at which this timeout expires.
+         *
+         * @return the wake time, in ticks.
+         */
+        public long getWakeTime() {
+            return wakeTime;
+        }
 
-class PriorThread {
-    public KThread thread;
-    public long priority;
+        private void fire() {
+            if (handler != null)
+                handler.run();
+            else
+                thread.ready();
+        }
+
+        private void linkBefore(Timeout successor) {
+            prev = successor.prev;
+            next = successor;
+            prev.next = this;
+            successor.prev = this;
+        }
+
+        private void unlink() {
+            prev.next = next;
+            next.prev = prev;
+            prev = next = null;
+        }
 
-    public PriorThread(KThread t, long p) {
-        thread = t;
-        priority = p;
+        /** The action to run, or <tt>null</tt> to wake up <tt>thread</tt>. */
+        private Runnable handler;
+        /** The thread to wake up, if there is no handler. */
+        private KThread thread;
+        private long wakeTime;
+        /** The neighbours in this timeout's list, or <tt>null</tt>. */
+        private Timeout prev, next;
     }
 
-    public static class Comp implements Comparator<PriorThread> {
-        public int compare(PriorThread a, PriorThread b) {
-            if (a.priority > b.priority)
-                return 1;
-            else if (a.priority < b.priority)
-                return -1;
-            return 0;
+    /**
+     * Removes a thread whose timed wait has expired from the queue it waits
+     * on, and wakes it up. A thread that has already been handed access is
+     * left alone.
+     */
+    private static class QueueWait implements Runnable {
+        QueueWait(ThreadQueue waitQueue, KThread thread) {
+            this.waitQueue = waitQueue;
+            this.thread = thread;
+        }
+
+        public void run() {
+            if (waitQueue.remove(thread)) {
+                timedOut = true;
+                thread.ready();
+            }
         }
+
+        private ThreadQueue waitQueue;
+        private KThread thread;
+        boolean timedOut = false;
+    }
+
+    /**
+     * Test the timed waits of <tt>Semaphore</tt>, <tt>Lock</tt> and
+     * <tt>Condition2</tt>: waits that time out, waits that another thread ends
+     * before their timeout, and waits with a zero timeout.
+     */
+    public static void selfTest() {
+        final Semaphore semaphore = new Semaphore(0);
+        final Semaphore go = new Semaphore(0);
+        final Semaphore hold = new Semaphore(0);
+        final Lock lock = new Lock();
+        final Condition2 condition = new Condition2(lock);
+
+        // a zero timeout does not wait
+        long start = Machine.timer().getTime();
+        Lib.assertTrue(!semaphore.P(0));
+        lock.acquire();
+        Lib.assertTrue(!condition.sleep(0));
+        Lib.assertTrue(lock.isHeldByCurrentThread());
+        lock.release();
+        Lib.assertTrue(Machine.timer().getTime() - start < Stats.TimerTicks);
+
+        // a wait that nobody ends times out
+        start = Machine.timer().getTime();
+        Lib.assertTrue(!semaphore.P(1000));
+        lock.acquire();
+        Lib.assertTrue(!condition.sleep(1000));
+        Lib.assertTrue(lock.isHeldByCurrentThread());
+        lock.release();
+        Lib.assertTrue(Machine.timer().getTime() - start >= 2000);
+
+        // another thread ends the waits before they time out
+        KThread waker = new KThread(new Runnable() {
+            public void run() {
+                lock.acquire();
+                condition.wake();
+                lock.release();
+                semaphore.V();
+
+                go.P();
+                lock.acquire();
+                semaphore.V();
+                hold.P();
+                lock.release();
+            }
+        }).setName("alarm test");
+
+        start = Machine.timer().getTime();
+        lock.acquire();
+        waker.fork();
+        Lib.assertTrue(condition.sleep(1000000));
+        lock.release();
+        Lib.assertTrue(semaphore.P(1000000));
+
+        // the waker takes the lock and holds it until hold is raised
+        go.V();
+        Lib.assertTrue(semaphore.P(1000000));
+        Lib.assertTrue(!lock.tryAcquire(0));
+        Lib.assertTrue(!lock.tryAcquire(1000));
+        hold.V();
+        Lib.assertTrue(lock.tryAcquire(1000000));
+        lock.release();
+        waker.join();
+        Lib.assertTrue(Machine.timer().getTime() - start < 1000000);
     }
+
+    /** The number of buckets in the wheel; a power of two. */
+    private static final int wheelSize = 256;
+    /** The number of ticks each bucket covers. */
+    private static final int slotTicks = 64;
+
+    /** The head of each bucket's circular list. */
+    private Timeout[] buckets = new Timeout[wheelSize];
+    /** The head of the list of timeouts the current interrupt expires. */
+    private Timeout expired = new Timeout(null, null);
+    /** The first slot the next timer interrupt walks. */
+    private long nextSlot = 0;
+    /** The number of timeouts in the wheel. */
+    private int pending = 0;
 }
@@ -0,0 +1,379 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A kernel that measures the cost of the thread primitives: <tt>yield()</tt>,
+ * semaphores, locks, condition variables, communicators and the alarm. Each
+ * benchmark runs with every thread count in <tt>Benchmark.threads</tt> (a
+ * comma-separated list, by default <tt>2,10,100</tt>), and is run
+ * <tt>Benchmark.warmups</tt> times before <tt>Benchmark.rounds</tt> measured
+ * rounds of about <tt>Benchmark.operations</tt> operations each.
+ *
+ * <p>
+ * The results are written as a JSON array to the stub file system file named
+ * by <tt>Benchmark.output</tt>, or to standard output if it is not set. Each
+ * result records the scheduler, the thread count, the mean wall-clock
+ * latency and throughput of the best round, and the simulated ticks per
+ * operation, which do not depend on the host and so make a good regression
+ * check. To compare schedulers, run the benchmark once per
+ * <tt>ThreadedKernel.scheduler</tt>. Thread counts above 250 need a larger
+ * <tt>TCB.maxThreads</tt>.
+ *
+ * <p>
+ * A context switch in <tt>KThread.yield()</tt> is one <tt>TCB</tt> context
+ * switch plus the ready queue operations, so the <tt>yield</tt> benchmark with
+ * two threads also measures <tt>TCB.contextSwitch()</tt>.
+ *
+ * <p>
+ * Under a proportional-share scheduler (lottery or stride), the
+ * <tt>share</tt> benchmark gives thread <i>i</i> <i>i</i>+1 tickets and
+ * counts how often each thread runs. Its <tt>fairnessError</tt> is the
+ * fraction of all runs that went to the wrong thread, compared with an exact
+ * split by tickets.
+ *
+ * <p>
+ * To run it, set <tt>Kernel.kernel = nachos.threads.BenchmarkKernel</tt>. The
+ * machine needs no processor, console or network.
+ */
+public class BenchmarkKernel extends ThreadedKernel {
+    /**
+     * Allocate a new benchmark kernel.
+     */
+    public BenchmarkKernel() {
+        super();
+    }
+
+    /**
+     * The benchmarks replace the self tests, which would only skew them.
+     */
+    public void selfTest() {
+    }
+
+    /**
+     * Run every benchmark with every thread count, and write out the results.
+     */
+    public void run() {
+        String[] counts = Config.getString("Benchmark.threads", "2,10,100")
+            .split(",");
+        operations = Config.getInteger("Benchmark.operations", 10000);
+        warmups = Config.getInteger("Benchmark.warmups", 1);
+        rounds = Config.getInteger("Benchmark.rounds", 3);
+        Lib.assertTrue(operations > 0 && warmups >= 0 && rounds > 0);
+
+        for (int i = 0; i < counts.length; i++) {
+            int threads = Integer.parseInt(counts[i].trim());
+            Lib.assertTrue(threads >= 2);
+
+            for (int j = 0; j < benchmarks.length; j++)
+                measure(benchmarks[j], threads);
+        }
+
+        results.append("\n]\n");
+
+        String output = Config.getString("Benchmark.output");
+        if (output == null) {
+            System.out.print(results);
+            return;
+        }
+
+        Lib.assertTrue(fileSystem != null);
+        OpenFile file = fileSystem.open(output, true);
+        Lib.assertTrue(file != null);
+
+        byte[] data = results.toString().getBytes();
+        Lib.assertTrue(file.write(data, 0, data.length) == data.length);
+        file.close();
+    }
+
+    /**
+     * Run the warm-up and measured rounds of a benchmark, and add the best
+     * round to the results.
+     */
+    private void measure(Benchmark benchmark, int threads) {
+        if (benchmark.measuresShare && !proportionalShare())
+            return;
+
+        int perThread = Math.max(1, operations / threads);
+
+        for (int i = 0; i < warmups; i++)
+            benchmark.round(threads, perThread);
+
+        long bestNanos = Long.MAX_VALUE, ticks = 0;
+        double error = 0;
+        for (int i = 0; i < rounds; i++) {
+            long startTicks = Machine.timer().getTime();
+            long nanos = benchmark.round(threads, perThread);
+            if (nanos < bestNanos) {
+                bestNanos = nanos;
+                ticks = Machine.timer().getTime() - startTicks;
+            }
+            error = Math.max(error, benchmark.error);
+        }
+
+        long ops = (long) threads * perThread;
+        double nsPerOp = (double) bestNanos / ops;
+
+        results.append(results.length() == 1 ? "\n" : ",\n");
+        results.append("  {\"benchmark\": \"" + benchmark.name + "\", "
+                       + "\"scheduler\": \""
+                       + scheduler.getClass().getName() + "\", "
+                       + "\"threads\": " + threads + ", "
+                       + "\"operations\": " + ops + ", "
+                       + "\"nsPerOp\": " + nsPerOp + ", "
+                       + "\"opsPerSecond\": " + (1e9 / nsPerOp) + ", "
+                       + "\"ticksPerOp\": " + ((double) ticks / ops)
+                       + (benchmark.measuresShare ?
+                          ", \"fairnessError\": " + error : "")
+                       + "}");
+    }
+
+    /**
+     * Return <tt>true</tt> if the scheduler shares the processor in
+     * proportion to tickets.
+     */
+    private static boolean proportionalShare() {
+        return scheduler instanceof LotteryScheduler ||
+            scheduler instanceof StrideScheduler;
+    }
+
+    /**
+     * A benchmark of one primitive. Each round forks the threads, waits until
+     * they have all started, and times them from then until they have all
+     * finished.
+     */
+    private static abstract class Benchmark {
+        Benchmark(String name) {
+            this(name, false);
+        }
+
+        Benchmark(String name, boolean measuresShare) {
+            this.name = name;
+            this.measuresShare = measuresShare;
+        }
+
+        /**
+         * Set up the shared state of a round.
+         */
+        void setUp(int threads) {
+        }
+
+        /**
+         * Prepare a thread before it is forked.
+         */
+        void prepare(KThread worker, int thread) {
+        }
+
+        /**
+         * Do the operations of one thread.
+         */
+        abstract void work(int thread, int threads, int count);
+
+        /**
+         * Called once every thread of a round has been released.
+         */
+        void released() {
+        }
+
+        /**
+         * Run one round and return its length in nanoseconds.
+         */
+        long round(final int threads, final int count) {
+            setUp(threads);
+
+            final Semaphore started = new Semaphore(0);
+            final Semaphore gate = new Semaphore(0);
+            final Semaphore finished = new Semaphore(0);
+            KThread[] workers = new KThread[threads];
+
+            for (int i = 0; i < threads; i++) {
+                final int thread = i;
+                workers[i] = new KThread(new Runnable() {
+                    public void run() {
+                        started.V();
+                        gate.P();
+                        work(thread, threads, count);
+                        finished.V();
+                    }
+                }).setName(name + " " + i);
+                prepare(workers[i], i);
+                workers[i].fork();
+            }
+
+            for (int i = 0; i < threads; i++)
+                started.P();
+
+            long start = System.nanoTime();
+            for (int i = 0; i < threads; i++)
+                gate.V();
+            released();
+
+            // wait on a semaphore rather than in join(), which would transfer
+            // the main thread's priority to the workers
+            for (int i = 0; i < threads; i++)
+                finished.P();
+            long nanos = System.nanoTime() - start;
+
+            for (int i = 0; i < threads; i++)
+                workers[i].join();
+
+            return nanos;
+        }
+
+        final String name;
+        /** <tt>true</tt> if this benchmark sets <tt>error</tt>. */
+        final boolean measuresShare;
+        /** The fairness error of the last round. */
+        double error = 0;
+    }
+
+    private static Benchmark[] benchmarks = {
+        new Benchmark("yield") {
+            void work(int thread, int threads, int count) {
+                for (int i = 0; i < count; i++)
+                    KThread.yield();
+            }
+        },
+
+        new Benchmark("semaphore") {
+            void setUp(int threads) {
+                semaphore = new Semaphore(1);
+            }
+
+            void work(int thread, int threads, int count) {
+                for (int i = 0; i < count; i++) {
+                    semaphore.P();
+                    KThread.yield();
+                    semaphore.V();
+                }
+            }
+
+            private Semaphore semaphore;
+        },
+
+        new Benchmark("lock") {
+            void setUp(int threads) {
+                lock = new Lock();
+            }
+
+            void work(int thread, int threads, int count) {
+                for (int i = 0; i < count; i++) {
+                    lock.acquire();
+                    KThread.yield();
+                    lock.release();
+                }
+            }
+
+            private Lock lock;
+        },
+
+        new Benchmark("condition") {
+            void setUp(int threads) {
+                lock = new Lock();
+                turns = new Condition2[threads];
+                for (int i = 0; i < threads; i++)
+                    turns[i] = new Condition2(lock);
+                turn = 0;
+            }
+
+            // pass a turn around a ring of threads
+            void work(int thread, int threads, int count) {
+                lock.acquire();
+                for (int i = 0; i < count; i++) {
+                    while (turn != thread)
+                        turns[thread].sleep();
+
+                    turn = (thread + 1) % threads;
+                    turns[turn].wake();
+                }
+                lock.release();
+            }
+
+            private Lock lock;
+            private Condition2[] turns;
+            private int turn;
+        },
+
+        new Benchmark("communicator") {
+            void setUp(int threads) {
+                communicator = new Communicator();
+            }
+
+            // half the threads speak and the other half listen
+            void work(int thread, int threads, int count) {
+                int pairs = threads / 2;
+                if (thread >= 2 * pairs)
+                    return;
+
+                for (int i = 0; i < count; i++) {
+                    if (thread < pairs)
+                        communicator.speak(i);
+                    else
+                        communicator.listen();
+                }
+            }
+
+            private Communicator communicator;
+        },
+
+        new Benchmark("share", true) {
+            // the main thread must release every worker before the first
+            // ones are done, so it gets far more tickets than they do until
+            // then
+            void setUp(int threads) {
+                runs = new int[threads];
+                done = 0;
+                total = 0;
+
+                boolean intStatus = Machine.interrupt().disable();
+                mainTickets = scheduler.getPriority();
+                scheduler.setPriority(1 << 20);
+                Machine.interrupt().restore(intStatus);
+            }
+
+            void prepare(KThread worker, int thread) {
+                boolean intStatus = Machine.interrupt().disable();
+                scheduler.setPriority(worker, thread + 1);
+                Machine.interrupt().restore(intStatus);
+            }
+
+            // every thread runs until the threads have run count times each
+            void work(int thread, int threads, int count) {
+                total = threads * count;
+                while (done < total) {
+                    runs[thread]++;
+                    done++;
+                    KThread.yield();
+                }
+
+                if (thread == 0) {
+                    long tickets = (long) threads * (threads + 1) / 2;
+                    double misplaced = 0;
+                    for (int i = 0; i < threads; i++)
+                        misplaced += Math.abs(runs[i]
+                                              - (double) done * (i + 1) / tickets);
+                    error = misplaced / 2 / done;
+                }
+            }
+
+            void released() {
+                boolean intStatus = Machine.interrupt().disable();
+                scheduler.setPriority(mainTickets);
+                Machine.interrupt().restore(intStatus);
+            }
+
+            private int[] runs;
+            private int done, total, mainTickets;
+        },
+
+        new Benchmark("alarm") {
+            void work(int thread, int threads, int count) {
+                for (int i = 0; i < count; i++)
+                    alarm.waitUntil(1);
+            }
+        },
+    };
+
+    private int operations, warmups, rounds;
+    private StringBuffer results = new StringBuffer("[");
+}
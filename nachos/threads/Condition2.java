@@ -2,8 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.LinkedList;
-
 /**
  * An implementation of condition variables that disables interrupt()s for
  * synchronization.
@@ -24,8 +22,6 @@ public class Condition2 {
      */
     public Condition2(Lock conditionLock) {
         this.conditionLock = conditionLock;
-
-        waitQueue = new LinkedList<KThread>();
     }
 
     /**
@@ -40,13 +36,43 @@ public class Condition2 {
         boolean currentStatus = Machine.interrupt().disable();
 
         conditionLock.release();
-        waitQueue.add(KThread.currentThread());
+        waitQueue.waitForAccess(KThread.currentThread());
         KThread.sleep();
         conditionLock.acquire();
 
         Machine.interrupt().restore(currentStatus);
     }
 
+    /**
+     * Atomically release the associated lock and go to sleep on this condition
+     * variable until another thread wakes it using <tt>wake()</tt>, or until
+     * <i>timeout</i> ticks have passed. The current thread must hold the
+     * associated lock. The thread will automatically reacquire the lock before
+     * <tt>sleep()</tt> returns, whether or not it timed out.
+     *
+     * @param timeout the maximum number of ticks to sleep; the sleep ends at
+     *                the first timer interrupt after that. If it is not
+     *                positive, return at once without releasing the lock.
+     * @return <tt>true</tt> if the thread was woken, or <tt>false</tt> if the
+     *         sleep timed out.
+     */
+    public boolean sleep(long timeout) {
+        Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+        if (timeout <= 0)
+            return false;
+
+        boolean currentStatus = Machine.interrupt().disable();
+
+        conditionLock.release();
+        waitQueue.waitForAccess(KThread.currentThread());
+        boolean woken = ThreadedKernel.alarm.sleepOn(waitQueue, timeout);
+        conditionLock.acquire();
+
+        Machine.interrupt().restore(currentStatus);
+        return woken;
+    }
+
     /**
      * Wake up at most one thread sleeping on this condition variable. The current
      * thread must hold the associated lock.
@@ -56,10 +82,9 @@ public class Condition2 {
 
         boolean currentStatus = Machine.interrupt().disable();
 
-        if (!waitQueue.isEmpty()) {
-            KThread currentThread = waitQueue.removeFirst();
-            currentThread.ready();
-        }
+        KThread thread = waitQueue.nextThread();
+        if (thread != null)
+            thread.ready();
 
         Machine.interrupt().restore(currentStatus);
     }
@@ -71,11 +96,16 @@ public class Condition2 {
     public void wakeAll() {
         Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-        while (!waitQueue.isEmpty()) {
-            wake();
-        }
+        boolean currentStatus = Machine.interrupt().disable();
+
+        KThread thread;
+        while ((thread = waitQueue.nextThread()) != null)
+            thread.ready();
+
+        Machine.interrupt().restore(currentStatus);
     }
 
     private Lock conditionLock;
-    private LinkedList<KThread> waitQueue;
+    private ThreadQueue waitQueue =
+        ThreadedKernel.scheduler.newThreadQueue(false);
 }
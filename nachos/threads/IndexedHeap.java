@@ -0,0 +1,134 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+
+/**
+ * A binary min-heap whose elements remember where they are in it. Besides
+ * taking the smallest element, this lets a thread queue remove any waiting
+ * thread, or move one whose key has changed, in <i>O</i>(log <i>n</i>) time.
+ * The order of the elements is given by a comparator.
+ *
+ * <p>
+ * An element can be in only one heap at a time.
+ */
+class IndexedHeap<E extends IndexedHeap.Element> {
+    /**
+     * An element of an <tt>IndexedHeap</tt>.
+     */
+    static class Element {
+	/** The position of this element in its heap, or -1. */
+	int heapIndex = -1;
+    }
+
+    /**
+     * Allocate a new, empty heap.
+     *
+     * @param	order	orders the elements, smallest first.
+     */
+    IndexedHeap(Comparator<? super E> order) {
+	this.order = order;
+    }
+
+    /**
+     * Return the number of elements in this heap.
+     */
+    int size() {
+	return heap.size();
+    }
+
+    /**
+     * Return the smallest element, or <tt>null</tt> if the heap is empty.
+     */
+    E peek() {
+	return heap.isEmpty() ? null : heap.get(0);
+    }
+
+    /**
+     * Return the element at the specified position, in heap order.
+     */
+    E get(int index) {
+	return heap.get(index);
+    }
+
+    /**
+     * Add an element that is not in any heap.
+     */
+    void add(E element) {
+	Lib.assertTrue(element.heapIndex == -1);
+
+	heap.add(element);
+	siftUp(heap.size() - 1);
+    }
+
+    /**
+     * Remove an element from this heap.
+     */
+    void remove(E element) {
+	int index = element.heapIndex;
+	Lib.assertTrue(heap.get(index) == element);
+
+	E last = heap.remove(heap.size() - 1);
+	element.heapIndex = -1;
+
+	if (index < heap.size()) {
+	    place(last, index);
+	    siftDown(siftUp(index));
+	}
+    }
+
+    /**
+     * Restore the heap order after the key of an element has changed.
+     */
+    void reposition(E element) {
+	siftDown(siftUp(element.heapIndex));
+    }
+
+    private void place(E element, int index) {
+	heap.set(index, element);
+	element.heapIndex = index;
+    }
+
+    private int siftUp(int index) {
+	E element = heap.get(index);
+
+	while (index > 0) {
+	    int parent = (index - 1) / 2;
+	    if (order.compare(element, heap.get(parent)) >= 0)
+		break;
+
+	    place(heap.get(parent), index);
+	    index = parent;
+	}
+
+	place(element, index);
+	return index;
+    }
+
+    private void siftDown(int index) {
+	E element = heap.get(index);
+	int size = heap.size();
+
+	while (true) {
+	    int child = 2*index + 1;
+	    if (child >= size)
+		break;
+	    if (child+1 < size &&
+		order.compare(heap.get(child+1), heap.get(child)) < 0)
+		child++;
+	    if (order.compare(heap.get(child), element) >= 0)
+		break;
+
+	    place(heap.get(child), index);
+	    index = child;
+	}
+
+	place(element, index);
+    }
+
+    private Comparator<? super E> order;
+    /** The elements, in heap order. */
+    private ArrayList<E> heap = new ArrayList<E>();
+}
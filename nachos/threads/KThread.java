@@ -52,21 +52,36 @@ public class KThread {
 
     /**
      * Allocate a new <tt>KThread</tt>. If this is the first <tt>KThread</tt>,
-     * create an idle thread as well.
+     * create the ready queues and an idle thread for each processor as well.
+     *
+     * <p>
+     * New threads are spread over the processors in turn; once a thread has
+     * run, it stays on the processor it ran on.
      */
     public KThread() {
         if (currentThread != null) {
             tcb = new TCB();
+
+            cpu = nextCPU;
+            nextCPU = (nextCPU + 1) % readyQueues.length;
         } else {
-            readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
-            readyQueue.acquire(this);
+            int numCPUs = Machine.numProcessors();
+
+            readyQueues = new ThreadQueue[numCPUs];
+            for (int i = 0; i < numCPUs; i++) {
+                readyQueues[i] = ThreadedKernel.scheduler.newReadyQueue(i);
+                readyQueues[i].acquire(this);
+            }
+            cpuThreads = new KThread[numCPUs];
+            cpuThreads[0] = this;
+            numReady = new int[numCPUs];
 
             currentThread = this;
             tcb = TCB.currentTCB();
             name = "main";
             restoreState();
 
-            createIdleThread();
+            createIdleThreads();
         }
     }
 
@@ -221,6 +236,11 @@ public class KThread {
      * <tt>readyQueue.nextThread()</tt>.
      *
      * <p>
+     * With more than one processor, the processors take turns: this processor
+     * picks its next thread, but the thread running on the next processor is
+     * the one that gets to execute.
+     *
+     * <p>
      * Interrupts are disabled, so that the current thread can atomically add itself
      * to the ready queue and switch to the next thread. On return, restores
      * interrupts to the previous state, in case <tt>yield()</tt> was called with
@@ -235,7 +255,42 @@ public class KThread {
 
         currentThread.ready();
 
-        runNextThread();
+        int cpu = currentThread.cpu;
+        dispatch(cpu);
+
+        cpuThreads[(cpu + 1) % cpuThreads.length].run();
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Called by the timer interrupt handler. The current thread yields if it has
+     * run for its scheduler quantum since it was dispatched and the scheduler can
+     * give its processor another thread, and otherwise keeps its processor, which
+     * saves a pointless context switch. With more than one processor, the
+     * simulation still moves on to the next processor, just as <tt>yield()</tt>
+     * does, without taking this processor from the current thread.
+     */
+    public static void preempt() {
+        Lib.assertTrue(currentThread.status == statusRunning);
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        int cpu = currentThread.cpu;
+        long ran = Machine.timer().getTime() - currentThread.dispatchTime;
+
+        if (ThreadedKernel.scheduler.hasReadyThread(cpu, numReady[cpu]) &&
+                (currentThread == idleThreads[cpu] ||
+                        ran >= ThreadedKernel.scheduler.getQuantum(currentThread))) {
+            KThread.yield();
+        }
+        else {
+            Lib.debug(dbgThread,
+                    "Not preempting thread: " + currentThread.toString());
+
+            if (cpuThreads.length > 1)
+                cpuThreads[(cpu + 1) % cpuThreads.length].run();
+        }
 
         Machine.interrupt().restore(intStatus);
     }
@@ -273,8 +328,10 @@ public class KThread {
         Lib.assertTrue(status != statusReady);
 
         status = statusReady;
-        if (this != idleThread)
-            readyQueue.waitForAccess(this);
+        if (this != idleThreads[cpu]) {
+            readyQueues[cpu].waitForAccess(this);
+            numReady[cpu]++;
+        }
 
         Machine.autoGrader().readyThread(this);
     }
@@ -306,40 +363,106 @@ public class KThread {
     }
 
     /**
-     * Create the idle thread. Whenever there are no threads ready to be run, and
-     * <tt>runNextThread()</tt> is called, it will run the idle thread. The idle
-     * thread must never block, and it will only be allowed to run when all other
-     * threads are blocked.
+     * Create the idle threads, one per processor. Whenever there are no threads
+     * ready to be run on a processor, and <tt>runNextThread()</tt> is called, it
+     * will run the processor's idle thread. An idle thread must never block, and
+     * it will only be allowed to run when all other threads of its processor are
+     * blocked.
+     *
+     * <p>
+     * Note that <tt>ready()</tt> never adds an idle thread to the ready set.
      *
      * <p>
-     * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+     * Unless <tt>ThreadedKernel.idleFastForward</tt> is <tt>false</tt>, when
+     * every processor is idle and no thread is ready, the idle thread lets
+     * simulated time pass up to the next interrupt in one step instead of
+     * yielding once per kernel tick. Interrupts are still delivered at the same
+     * tick.
      */
-    private static void createIdleThread() {
-        Lib.assertTrue(idleThread == null);
+    private static void createIdleThreads() {
+        Lib.assertTrue(idleThreads == null);
+
+        final boolean fastForward = Config.getBoolean("ThreadedKernel.idleFastForward", true);
+
+        idleThreads = new KThread[cpuThreads.length];
+        for (int i = 0; i < idleThreads.length; i++) {
+            idleThreads[i] = new KThread(new Runnable() {
+                public void run() {
+                    while (true) {
+                        if (fastForward && allIdle())
+                            Machine.interrupt().idle();
+                        yield();
+                    }
+                }
+            });
+            idleThreads[i].setName(i == 0 ? "idle" : "idle " + i);
+            idleThreads[i].cpu = i;
+        }
+        nextCPU = 0;
 
-        idleThread = new KThread(new Runnable() {
-            public void run() {
-                while (true)
-                    yield();
-            }
-        });
-        idleThread.setName("idle");
+        Machine.autoGrader().setIdleThread(idleThreads[0]);
 
-        Machine.autoGrader().setIdleThread(idleThread);
+        for (int i = 0; i < idleThreads.length; i++) {
+            idleThreads[i].fork();
 
-        idleThread.fork();
+            // the other processors start out running their idle threads
+            if (i > 0)
+                cpuThreads[i] = idleThreads[i];
+        }
     }
 
     /**
-     * Determine the next thread to run, then dispatch the CPU to the thread using
-     * <tt>run()</tt>.
+     * Determine the next thread to run on the current processor, then dispatch
+     * the CPU to the thread using <tt>run()</tt>.
      */
     private static void runNextThread() {
-        KThread nextThread = readyQueue.nextThread();
+        dispatch(currentThread.cpu).run();
+    }
+
+    /**
+     * Test whether every processor is running its idle thread and no thread is
+     * waiting to run.
+     *
+     * @return <tt>true</tt> if there is nothing to do.
+     */
+    private static boolean allIdle() {
+        for (int i = 0; i < cpuThreads.length; i++) {
+            if (numReady[i] > 0 || cpuThreads[i] != idleThreads[i])
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Choose the next thread to run on the specified processor, and make it that
+     * processor's running thread. The thread does not execute until it is given
+     * the host with <tt>run()</tt>.
+     *
+     * @param cpu the processor number.
+     * @return the chosen thread.
+     */
+    private static KThread dispatch(int cpu) {
+        KThread nextThread = readyQueues[cpu].nextThread();
         if (nextThread == null)
-            nextThread = idleThread;
+            nextThread = idleThreads[cpu];
+        else
+            numReady[nextThread.cpu]--;
+
+        nextThread.cpu = cpu;
+        nextThread.dispatchTime = Machine.timer().getTime();
+        cpuThreads[cpu] = nextThread;
 
-        nextThread.run();
+        return nextThread;
+    }
+
+    /**
+     * Return the processor this thread runs on, or last ran on.
+     *
+     * @return the processor number.
+     */
+    public int getCPU() {
+        return cpu;
     }
 
     /**
@@ -370,6 +493,7 @@ public class KThread {
         Lib.debug(dbgThread, "Switching from: " + currentThread.toString() + " to: " + toString());
 
         currentThread = this;
+        Machine.setCurrentProcessor(cpu);
 
         tcb.contextSwitch();
 
@@ -464,9 +588,27 @@ public class KThread {
     /** Number of times the KThread constructor was called. */
     private static int numCreated = 0;
 
-    private static ThreadQueue readyQueue = null;
+    /** The processor this thread runs on. */
+    private int cpu = 0;
+    /** The time this thread was last dispatched to its processor. */
+    private long dispatchTime = 0;
+    /** The timeout that ends this thread's <tt>Alarm.waitUntil()</tt> calls. */
+    Alarm.Timeout alarmTimeout = null;
+    /** The processor the next new thread is given to. */
+    private static int nextCPU = 0;
+
+    /** The ready queue of each processor. */
+    private static ThreadQueue[] readyQueues = null;
+    /** The thread each processor is running. */
+    private static KThread[] cpuThreads = null;
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
-    private static KThread idleThread = null;
+    private static KThread[] idleThreads = null;
+    /**
+     * The number of threads waiting in the ready queue of each processor. A
+     * thread counts against the queue of the processor it was readied on, even
+     * if another processor takes it.
+     */
+    private static int[] numReady = null;
     private ThreadQueue joinQueue = null;
 }
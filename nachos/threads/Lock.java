@@ -50,6 +50,37 @@ public class Lock {
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Atomically acquire this lock if it becomes free within <i>timeout</i>
+     * ticks. The current thread must not already hold this lock.
+     *
+     * @param	timeout	the maximum number of ticks to wait; the wait ends at
+     *			the first timer interrupt after that. If it is not
+     *			positive, only acquire the lock if it is free.
+     * @return	<tt>true</tt> if the lock was acquired, or <tt>false</tt> if
+     *		the wait timed out.
+     */
+    public boolean tryAcquire(long timeout) {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (lockHolder == null) {
+	    waitQueue.acquire(thread);
+	    lockHolder = thread;
+	}
+	else if (timeout > 0) {
+	    waitQueue.waitForAccess(thread);
+	    ThreadedKernel.alarm.sleepOn(waitQueue, timeout);
+	}
+
+	boolean acquired = (lockHolder == thread);
+
+	Machine.interrupt().restore(intStatus);
+	return acquired;
+    }
+
     /**
      * Atomically release this lock, allowing other threads to acquire it.
      */
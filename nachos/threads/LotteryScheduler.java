@@ -2,9 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -25,6 +22,14 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking
  * the maximum).
+ *
+ * <p>
+ * Each queue keeps the tickets of its waiting threads in a Fenwick tree, so
+ * holding a lottery, adding or removing a thread, and changing a thread's
+ * tickets each take O(log n) in the number of waiting threads. A thread's
+ * effective tickets are its own tickets plus the total of every queue it
+ * owns that transfers tickets, and a change to a thread's effective tickets
+ * is passed up the chain of owners as a single difference.
  */
 public class LotteryScheduler extends PriorityScheduler {
     /**
@@ -42,7 +47,370 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+	return new LotteryQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+		       
+	return getLotteryState(thread).tickets;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+		       
+	return (int) Math.min(getLotteryState(thread).effectiveTickets,
+			      Integer.MAX_VALUE);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+		       
+	Lib.assertTrue(priority >= priorityMinimum &&
+		   priority <= priorityMaximum);
+	
+	getLotteryState(thread).setTickets(priority);
+    }
+
+    public boolean increasePriority() {
+	return stepPriority(1, priorityMinimum, priorityMaximum);
+    }
+
+    public boolean decreasePriority() {
+	return stepPriority(-1, priorityMinimum, priorityMaximum);
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Return the lottery state of the specified thread.
+     *
+     * @param	thread	the thread whose lottery state to return.
+     * @return	the lottery state of the specified thread.
+     */
+    protected LotteryState getLotteryState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new LotteryState(thread);
+
+	return (LotteryState) thread.schedulingState;
     }
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+     *
+     * <p>
+     * Every waiting thread has a slot, and a Fenwick tree over the slots
+     * holds the effective tickets of the threads in them. Slots are reused
+     * when threads leave, and the tree is rebuilt at twice the size when the
+     * slots run out.
+     */
+    protected class LotteryQueue extends ThreadQueue {
+	LotteryQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getLotteryState(thread).waitForAccess(this);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getLotteryState(thread).acquire(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    LotteryState winner = pickNextThread();
+	    if (winner == null) {
+		if (transferPriority)
+		    setOwner(null);
+		return null;
+	    }
+
+	    remove(winner);
+	    winner.waitingOn = null;
+
+	    winner.acquire(this);
+	    return winner.thread;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    LotteryState state = getLotteryState(thread);
+	    if (state.waitingOn != this)
+		return false;
+
+	    remove(state);
+	    state.waitingOn = null;
+	    return true;
+	}
+
+	/**
+	 * Hold a lottery among the waiting threads, without modifying the
+	 * state of this queue.
+	 *
+	 * @return	the winner of the lottery, or <tt>null</tt> if no thread
+	 *		is waiting.
+	 */
+	protected LotteryState pickNextThread() {
+	    if (size == 0)
+		return null;
+
+	    long winningTicket;
+	    if (total <= Integer.MAX_VALUE)
+		winningTicket = Lib.random((int) total);
+	    else
+		winningTicket = Math.min((long) (Lib.random() * total),
+					 total - 1);
+
+	    // find the first slot whose prefix sum exceeds the winning ticket
+	    int slot = 0;
+	    for (int step=Integer.highestOneBit(slots.length); step>0;
+		 step>>=1) {
+		int next = slot + step;
+		if (next < tree.length && tree[next] <= winningTicket) {
+		    slot = next;
+		    winningTicket -= tree[next];
+		}
+	    }
+
+	    Lib.assertTrue(slots[slot] != null);
+	    return slots[slot];
+	}
+	
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<slots.length; i++) {
+		if (slots[i] != null)
+		    System.out.print(slots[i].thread + "("
+				     + slots[i].effectiveTickets + ") ");
+	    }
+	}
+
+	/**
+	 * Give a thread a slot.
+	 */
+	void add(LotteryState state) {
+	    if (freeSlots == 0)
+		grow();
+
+	    int slot = free[--freeSlots];
+	    slots[slot] = state;
+	    state.slot = slot;
+	    size++;
+
+	    adjust(slot, state.effectiveTickets);
+	}
+
+	/**
+	 * Take a thread's slot away.
+	 */
+	void remove(LotteryState state) {
+	    int slot = state.slot;
+	    Lib.assertTrue(slots[slot] == state);
+
+	    adjust(slot, -state.effectiveTickets);
+
+	    slots[slot] = null;
+	    state.slot = -1;
+	    free[freeSlots++] = slot;
+	    size--;
+	}
+
+	/**
+	 * Add the specified difference to the tickets in a slot, and to what
+	 * this queue transfers to its owner.
+	 */
+	void adjust(int slot, long delta) {
+	    if (delta == 0)
+		return;
+
+	    addToTree(slot, delta);
+
+	    if (transferPriority && owner != null)
+		owner.addDonation(delta);
+	}
+
+	/**
+	 * Add the specified difference to the tickets in a slot, without
+	 * passing it on.
+	 */
+	void addToTree(int slot, long delta) {
+	    for (int i=slot+1; i<tree.length; i+=i&-i)
+		tree[i] += delta;
+	    total += delta;
+	}
+
+	/**
+	 * Make a thread the owner of this queue, moving the tickets of this
+	 * queue from the old owner to the new one.
+	 */
+	void setOwner(LotteryState state) {
+	    if (owner == state)
+		return;
+
+	    if (owner != null)
+		owner.addDonation(-total);
+	    owner = state;
+	    if (owner != null)
+		owner.addDonation(total);
+	}
+
+	/**
+	 * Double the number of slots, rebuilding the tree over them.
+	 */
+	private void grow() {
+	    int oldLength = slots.length;
+	    LotteryState[] oldSlots = slots;
+
+	    slots = new LotteryState[Math.max(oldLength * 2, 4)];
+	    System.arraycopy(oldSlots, 0, slots, 0, oldLength);
+
+	    // the tree is 1-based, with tree[i] covering i-(i&-i)+1 to i
+	    tree = new long[slots.length + 1];
+	    for (int i=1; i<=oldLength; i++) {
+		if (slots[i-1] != null)
+		    tree[i] += slots[i-1].effectiveTickets;
+		int parent = i + (i&-i);
+		if (parent < tree.length)
+		    tree[parent] += tree[i];
+	    }
+
+	    free = new int[slots.length];
+	    for (int i=slots.length-1; i>=oldLength; i--)
+		free[freeSlots++] = i;
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	/** The thread waiting in each slot, or <tt>null</tt>. */
+	private LotteryState[] slots = new LotteryState[0];
+	/** The Fenwick tree over the effective tickets in the slots. */
+	private long[] tree = new long[1];
+	/** The unused slots, used as a stack. */
+	private int[] free = new int[0];
+	private int freeSlots = 0;
+	/** The number of waiting threads. */
+	private int size = 0;
+	/** The total effective tickets of the waiting threads. */
+	private long total = 0;
+	/** The thread that last acquired this queue, if it transfers. */
+	private LotteryState owner = null;
+    }
+
+    /**
+     * The lottery state of a thread: its tickets, its effective tickets, and
+     * the queue it is waiting on, if any.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class LotteryState {
+	/**
+	 * Allocate a new <tt>LotteryState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public LotteryState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Set the tickets of the associated thread to the specified value.
+	 *
+	 * @param	tickets	the new number of tickets.
+	 */
+	public void setTickets(int tickets) {
+	    long delta = (long) tickets - this.tickets;
+	    this.tickets = tickets;
+
+	    addDonation(delta);
+	}
+
+	/**
+	 * Called when the associated thread starts waiting on the specified
+	 * queue.
+	 *
+	 * @param	waitQueue	the queue that the associated thread is
+	 *				now waiting on.
+	 */
+	public void waitForAccess(LotteryQueue waitQueue) {
+	    Lib.assertTrue(waitingOn == null);
+
+	    waitingOn = waitQueue;
+	    waitQueue.add(this);
+	}
+
+	/**
+	 * Called when the associated thread has acquired access to whatever is
+	 * guarded by <tt>waitQueue</tt>.
+	 *
+	 * @param	waitQueue	the queue that was acquired.
+	 */
+	public void acquire(LotteryQueue waitQueue) {
+	    if (waitQueue.transferPriority)
+		waitQueue.setOwner(this);
+	}
+
+	/**
+	 * Add the specified difference to the effective tickets of the
+	 * associated thread, and pass it on to the queue it is waiting on. In
+	 * a deadlock the owners form a cycle, so the difference stops when it
+	 * comes back to a thread it has already reached.
+	 */
+	void addDonation(long delta) {
+	    if (delta == 0)
+		return;
+
+	    long pass = ++passes;
+	    for (LotteryState state = this; state != null &&
+		     state.lastPass != pass; ) {
+		state.lastPass = pass;
+		state.effectiveTickets += delta;
+
+		LotteryQueue queue = state.waitingOn;
+		if (queue == null)
+		    break;
+
+		queue.addToTree(state.slot, delta);
+		state = queue.transferPriority ? queue.owner : null;
+	    }
+	}
+
+	/** The thread with which this object is associated. */	   
+	protected KThread thread;
+	/** The tickets of the associated thread. */
+	protected int tickets = priorityDefault;
+	/** The tickets plus the tickets transferred to the thread. */
+	protected long effectiveTickets = priorityDefault;
+
+	/** The queue this thread is waiting on, or <tt>null</tt>. */
+	private LotteryQueue waitingOn = null;
+	/** The slot of this thread in that queue. */
+	private int slot = -1;
+	/** The last donation pass that reached this thread. */
+	private long lastPass = 0;
+    }
+
+    /** Numbers the donation passes, to detect cycles. */
+    private long passes = 0;
 }
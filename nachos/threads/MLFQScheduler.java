@@ -0,0 +1,339 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * A multi-level feedback queue scheduler. The ready queues have
+ * <tt>MLFQScheduler.levels</tt> priority levels, each kept in FIFO order,
+ * and always run a thread from the highest non-empty level, level 0 being
+ * the highest.
+ *
+ * <p>
+ * A thread's level reflects how it has used the processor. Each level has a
+ * quantum, <tt>MLFQScheduler.quantum</tt> ticks at level 0 and twice as long
+ * at each level below. Whenever a thread stops running, whether it yields,
+ * blocks or finishes, the time it ran is added to what it has used at its
+ * level, and once that reaches the level's quantum the thread is demoted one
+ * level. A thread that blocks keeps what it has used, so CPU-bound threads
+ * sink to the long quanta at the bottom even if they block briefly just
+ * before their quantum runs out. Each thread also keeps a running average of
+ * how long it runs each time it is dispatched. When a blocked thread is woken
+ * up, it is boosted one level if that average is less than half the quantum
+ * of level 0. So threads that wait on the console or other I/O without using
+ * their quantum rise back to the top, but threads that run for most of a
+ * quantum before each block do not. A thread that becomes ready at a higher
+ * level than the running thread takes the processor at the next timer
+ * interrupt, without waiting for the running thread's quantum to run out.
+ *
+ * <p>
+ * To keep threads at the bottom from starving, every thread goes back to
+ * level 0 once every <tt>MLFQScheduler.boostInterval</tt> ticks.
+ *
+ * <p>
+ * Wait queues other than the ready queues are FIFO, as in the round-robin
+ * scheduler.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new MLFQ scheduler.
+     */
+    public MLFQScheduler() {
+	levels = Config.getInteger("MLFQScheduler.levels", 4);
+	quantum = Config.getInteger("MLFQScheduler.quantum", Stats.TimerTicks);
+	boostInterval = Config.getInteger("MLFQScheduler.boostInterval",
+					  Stats.TimerTicks * 50);
+
+	Lib.assertTrue(levels > 0 && levels < 32);
+	Lib.assertTrue(quantum > 0 && boostInterval > 0);
+    }
+
+    /**
+     * Allocate a new FIFO thread queue.
+     *
+     * @param	transferPriority	ignored. This scheduler does not
+     *					transfer priority.
+     * @return	a new FIFO thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return fifoScheduler.newThreadQueue(false);
+    }
+
+    /**
+     * Allocate a new multi-level ready queue.
+     *
+     * @param	cpu	the processor number.
+     * @return	a new multi-level ready queue.
+     */
+    public ThreadQueue newReadyQueue(int cpu) {
+	return new FeedbackQueue();
+    }
+
+    /**
+     * Return the level of the specified thread, 0 being the highest.
+     *
+     * @param	thread	the thread whose level to return.
+     * @return	the level of the thread.
+     */
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+	state.checkEpoch();
+	return state.level;
+    }
+
+    /**
+     * Return what is left of the quantum of the specified thread at its
+     * level, so that the timer interrupt only preempts a thread once it has
+     * used up its level's quantum, or once a thread at a higher level is
+     * ready.
+     *
+     * @param	thread	the thread whose quantum to return.
+     * @return	the rest of the thread's quantum, in ticks.
+     */
+    public int getQuantum(KThread thread) {
+	ThreadState state = getThreadState(thread);
+	state.checkEpoch();
+	if (state.outranked)
+	    return 1;
+
+	return (int) Math.min(Math.max(((long) quantum << state.level)
+				       - state.used, 1),
+			      Integer.MAX_VALUE);
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState();
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Return the number of boost intervals since Nachos started.
+     */
+    private long currentEpoch() {
+	return Machine.timer().getTime() / boostInterval;
+    }
+
+    private class FeedbackQueue extends ThreadQueue {
+	FeedbackQueue() {
+	    queues = new ArrayList<ArrayDeque<KThread>>(levels);
+	    for (int i=0; i<levels; i++)
+		queues.add(new ArrayDeque<KThread>());
+	}
+
+	/**
+	 * Add a thread to the tail of its level. A thread that is still
+	 * running, because it is yielding, is first charged for the time it has
+	 * run, and a thread that has been woken up may be boosted. If the
+	 * thread is at a higher level than the running thread, the running
+	 * thread is marked to be preempted.
+	 *
+	 * @param	thread	the thread to add.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+
+	    checkEpoch();
+	    state.checkEpoch();
+	    if (state.dispatched >= 0)
+		state.charge(thread);
+	    else
+		state.wake(thread);
+
+	    queues.get(state.level).addLast(thread);
+
+	    if (running != null && running != thread) {
+		ThreadState runningState = getThreadState(running);
+		if (runningState.level > state.level)
+		    runningState.outranked = true;
+	    }
+	}
+
+	/**
+	 * Charge the thread this queue dispatched last for the time it has
+	 * run, unless it has already been charged when it yielded, and remove
+	 * the first thread of the highest non-empty level.
+	 *
+	 * @return	the thread to run next, or <tt>null</tt> if there is none.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (running != null) {
+		ThreadState state = getThreadState(running);
+		if (state.dispatched >= 0) {
+		    state.checkEpoch();
+		    state.charge(running);
+		}
+		running = null;
+	    }
+
+	    checkEpoch();
+
+	    for (int i=0; i<levels; i++) {
+		KThread thread = queues.get(i).pollFirst();
+		if (thread != null) {
+		    ThreadState state = getThreadState(thread);
+		    state.dispatched = Machine.timer().getTime();
+		    state.outranked = false;
+		    running = thread;
+		    return thread;
+		}
+	    }
+
+	    return null;
+	}
+
+	/**
+	 * Remove a thread from whichever level it is waiting in.
+	 *
+	 * @param	thread	the thread to remove.
+	 * @return	<tt>true</tt> if the thread was on the queue.
+	 */
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<levels; i++) {
+		if (queues.get(i).remove(thread))
+		    return true;
+	    }
+
+	    return false;
+	}
+
+	/**
+	 * Move every waiting thread to level 0 if a boost interval has begun
+	 * since the last check.
+	 */
+	private void checkEpoch() {
+	    long now = currentEpoch();
+	    if (epoch == now)
+		return;
+
+	    epoch = now;
+	    for (int i=1; i<levels; i++) {
+		queues.get(0).addAll(queues.get(i));
+		queues.get(i).clear();
+	    }
+	}
+
+	/**
+	 * The ready queues are never held by a thread, so there is nothing to
+	 * do beyond checking that the queue is empty.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<levels; i++)
+		Lib.assertTrue(queues.get(i).isEmpty());
+	}
+
+	/**
+	 * Print out the contents of each level.
+	 */
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<levels; i++) {
+		System.out.print(i + ":");
+		for (Iterator<KThread> j=queues.get(i).iterator(); j.hasNext(); )
+		    System.out.print(" " + j.next());
+		System.out.print(" ");
+	    }
+	}
+
+	/** The FIFO queue of each level. */
+	private ArrayList<ArrayDeque<KThread>> queues;
+	/** The boost interval of the last check. */
+	private long epoch = 0;
+	/** The thread this queue dispatched last, or <tt>null</tt>. */
+	private KThread running = null;
+    }
+
+    /**
+     * The scheduling state of a thread.
+     */
+    protected class ThreadState {
+	/**
+	 * Move the thread back to level 0 if a boost interval has begun since
+	 * its level was last checked.
+	 */
+	void checkEpoch() {
+	    long now = currentEpoch();
+	    if (epoch != now) {
+		epoch = now;
+		level = 0;
+		used = 0;
+	    }
+	}
+
+	/**
+	 * Add the time since the thread was dispatched to what it has used at
+	 * its level, and demote it if that uses up the level's quantum.
+	 */
+	void charge(KThread thread) {
+	    long ran = Machine.timer().getTime() - dispatched;
+	    used += ran;
+	    burst = (burst + ran) / 2;
+	    dispatched = -1;
+
+	    if (used >= ((long) quantum << level)) {
+		used = 0;
+		if (level < levels-1) {
+		    level++;
+		    Lib.debug(dbgMLFQ, thread + " demoted to level " + level);
+		}
+	    }
+	}
+
+	/**
+	 * Boost a thread that has been woken up one level, if it usually runs
+	 * for less than half the quantum of level 0.
+	 */
+	void wake(KThread thread) {
+	    if (level > 0 && burst < quantum / 2) {
+		level--;
+		used = 0;
+		Lib.debug(dbgMLFQ, thread + " boosted to level " + level);
+	    }
+	}
+
+	/** The level of the thread. */
+	int level = 0;
+	/** The ticks the thread has run at its level. */
+	long used = 0;
+	/** The average of the ticks the thread runs each time it is dispatched. */
+	long burst = 0;
+	/** The time the thread was last dispatched, or -1 once charged. */
+	long dispatched = -1;
+	/** Whether a thread at a higher level became ready while this ran. */
+	boolean outranked = false;
+	/** The boost interval in which the level was last checked. */
+	long epoch = 0;
+    }
+
+    /** Supplies the wait queues that are not ready queues. */
+    private RoundRobinScheduler fifoScheduler = new RoundRobinScheduler();
+    /** The number of levels. */
+    private int levels;
+    /** The quantum of level 0, in ticks. */
+    private int quantum;
+    /** How often every thread is moved back to level 0, in ticks. */
+    private int boostInterval;
+
+    private static final char dbgMLFQ = 'q';
+}
@@ -2,9 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Comparator;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -67,33 +65,11 @@ public class PriorityScheduler extends Scheduler {
     }
 
     public boolean increasePriority() {
-	boolean intStatus = Machine.interrupt().disable();
-		       
-	KThread thread = KThread.currentThread();
-
-	int priority = getPriority(thread);
-	if (priority == priorityMaximum)
-	    return false;
-
-	setPriority(thread, priority+1);
-
-	Machine.interrupt().restore(intStatus);
-	return true;
+	return stepPriority(1, priorityMinimum, priorityMaximum);
     }
 
     public boolean decreasePriority() {
-	boolean intStatus = Machine.interrupt().disable();
-		       
-	KThread thread = KThread.currentThread();
-
-	int priority = getPriority(thread);
-	if (priority == priorityMinimum)
-	    return false;
-
-	setPriority(thread, priority-1);
-
-	Machine.interrupt().restore(intStatus);
-	return true;
+	return stepPriority(-1, priorityMinimum, priorityMaximum);
     }
 
     /**
@@ -124,6 +100,14 @@ public class PriorityScheduler extends Scheduler {
 
     /**
      * A <tt>ThreadQueue</tt> that sorts threads by priority.
+     *
+     * <p>
+     * The waiting threads are kept in a binary heap ordered by their cached
+     * effective priorities, and then by the order in which they started
+     * waiting. A queue that transfers priority remembers the priority it
+     * donates to its owner, which is the effective priority of the thread at
+     * the top of its heap, so the donation only needs to be passed on when
+     * the top of the heap changes.
      */
     protected class PriorityQueue extends ThreadQueue {
 	PriorityQueue(boolean transferPriority) {
@@ -142,8 +126,31 @@ public class PriorityScheduler extends Scheduler {
 
 	public KThread nextThread() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me
-	    return null;
+
+	    ThreadState next = heap.peek();
+	    if (next == null) {
+		if (transferPriority)
+		    setOwner(null);
+		return null;
+	    }
+
+	    remove(next);
+	    next.waitingOn = null;
+
+	    next.acquire(this);
+	    return next.thread;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.waitingOn != this)
+		return false;
+
+	    remove(state);
+	    state.waitingOn = null;
+	    return true;
 	}
 
 	/**
@@ -154,13 +161,83 @@ public class PriorityScheduler extends Scheduler {
 	 *		return.
 	 */
 	protected ThreadState pickNextThread() {
-	    // implement me
-	    return null;
+	    return heap.peek();
 	}
 	
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me (if you want)
+
+	    for (int i=0; i<heap.size(); i++)
+		System.out.print(heap.get(i).thread + "("
+				 + heap.get(i).effectivePriority + ") ");
+	}
+
+	/**
+	 * Add a thread to the heap.
+	 */
+	void add(ThreadState state) {
+	    heap.add(state);
+	    updateDonation();
+	}
+
+	/**
+	 * Remove a thread from the heap.
+	 */
+	void remove(ThreadState state) {
+	    heap.remove(state);
+	    updateDonation();
+	}
+
+	/**
+	 * Restore the heap order after the effective priority of a waiting
+	 * thread has changed.
+	 */
+	void reposition(ThreadState state) {
+	    heap.reposition(state);
+	    updateDonation();
+	}
+
+	/**
+	 * Make a thread the owner of this queue, moving the donation of this
+	 * queue from the old owner to the new one.
+	 */
+	void setOwner(ThreadState state) {
+	    if (owner == state)
+		return;
+
+	    ThreadState oldOwner = owner;
+	    owner = state;
+
+	    if (donation >= 0) {
+		if (oldOwner != null)
+		    oldOwner.removeDonation(donation);
+		if (owner != null)
+		    owner.addDonation(donation);
+	    }
+	}
+
+	/**
+	 * Recompute the priority this queue donates, and pass any change on to
+	 * the owner.
+	 */
+	private void updateDonation() {
+	    if (!transferPriority)
+		return;
+
+	    ThreadState top = heap.peek();
+	    int newDonation = (top == null) ? -1 : top.effectivePriority;
+	    if (newDonation == donation)
+		return;
+
+	    int oldDonation = donation;
+	    donation = newDonation;
+
+	    if (owner != null) {
+		if (oldDonation >= 0)
+		    owner.removeDonation(oldDonation);
+		if (newDonation >= 0)
+		    owner.addDonation(newDonation);
+	    }
 	}
 
 	/**
@@ -168,6 +245,14 @@ public class PriorityScheduler extends Scheduler {
 	 * threads to the owning thread.
 	 */
 	public boolean transferPriority;
+
+	/** The waiting threads, highest effective priority first. */
+	private IndexedHeap<ThreadState> heap =
+	    new IndexedHeap<ThreadState>(waitingOrder);
+	/** The thread that last acquired this queue, if it transfers. */
+	private ThreadState owner = null;
+	/** The priority donated to the owner, or -1 if there is none. */
+	private int donation = -1;
     }
 
     /**
@@ -175,9 +260,18 @@ public class PriorityScheduler extends Scheduler {
      * priority, its effective priority, any objects it owns, and the queue
      * it's waiting for, if any.
      *
+     * <p>
+     * The effective priority is cached. Since there are only a few priority
+     * levels, a thread counts the donations it receives at each level, so
+     * its effective priority is the larger of its own priority and the
+     * highest level with a donation. When the effective priority changes,
+     * the thread is moved in the heap of the queue it waits on, which may in
+     * turn change what that queue donates to its owner. The change travels
+     * up the chain of owners only as far as it changes something.
+     *
      * @see	nachos.threads.KThread#schedulingState
      */
-    protected class ThreadState {
+    protected class ThreadState extends IndexedHeap.Element {
 	/**
 	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
 	 * specified thread.
@@ -205,8 +299,7 @@ public class PriorityScheduler extends Scheduler {
 	 * @return	the effective priority of the associated thread.
 	 */
 	public int getEffectivePriority() {
-	    // implement me
-	    return priority;
+	    return effectivePriority;
 	}
 
 	/**
@@ -220,7 +313,7 @@ public class PriorityScheduler extends Scheduler {
 	    
 	    this.priority = priority;
 	    
-	    // implement me
+	    updateEffectivePriority();
 	}
 
 	/**
@@ -236,7 +329,11 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#waitForAccess
 	 */
 	public void waitForAccess(PriorityQueue waitQueue) {
-	    // implement me
+	    Lib.assertTrue(waitingOn == null);
+
+	    waitingOn = waitQueue;
+	    waitingSince = nextWaitingSince++;
+	    waitQueue.add(this);
 	}
 
 	/**
@@ -250,12 +347,78 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#nextThread
 	 */
 	public void acquire(PriorityQueue waitQueue) {
-	    // implement me
+	    if (waitQueue.transferPriority)
+		waitQueue.setOwner(this);
 	}	
 
+	/**
+	 * Count a donation of the specified priority from an owned queue.
+	 */
+	void addDonation(int donated) {
+	    donations[donated]++;
+	    if (donated > effectivePriority)
+		updateEffectivePriority();
+	}
+
+	/**
+	 * Drop a donation of the specified priority from an owned queue.
+	 */
+	void removeDonation(int donated) {
+	    Lib.assertTrue(donations[donated] > 0);
+	    donations[donated]--;
+	    if (donated == effectivePriority && donations[donated] == 0)
+		updateEffectivePriority();
+	}
+
+	/**
+	 * Recompute the effective priority, and if it changed, restore the
+	 * order of the queue this thread is waiting on.
+	 */
+	private void updateEffectivePriority() {
+	    int effective = priority;
+	    for (int level=priorityMaximum; level>priority; level--) {
+		if (donations[level] > 0) {
+		    effective = level;
+		    break;
+		}
+	    }
+
+	    if (effective == effectivePriority)
+		return;
+
+	    effectivePriority = effective;
+
+	    if (waitingOn != null)
+		waitingOn.reposition(this);
+	}
+
 	/** The thread with which this object is associated. */	   
 	protected KThread thread;
 	/** The priority of the associated thread. */
 	protected int priority;
+	/** The cached effective priority of the associated thread. */
+	protected int effectivePriority;
+
+	/** The number of owned queues donating each priority. */
+	private int[] donations = new int[priorityMaximum+1];
+	/** The queue this thread is waiting on, or <tt>null</tt>. */
+	private PriorityQueue waitingOn = null;
+	/** Orders threads of equal priority by when they started waiting. */
+	private long waitingSince;
     }
+
+    /**
+     * Orders waiting threads by effective priority, highest first, and then
+     * by when they started waiting.
+     */
+    private Comparator<ThreadState> waitingOrder = new Comparator<ThreadState>() {
+	public int compare(ThreadState a, ThreadState b) {
+	    if (a.effectivePriority != b.effectivePriority)
+		return (a.effectivePriority > b.effectivePriority) ? -1 : 1;
+	    return Long.compare(a.waitingSince, b.waitingSince);
+	}
+    };
+
+    /** The next value for <tt>ThreadState.waitingSince</tt>. */
+    private long nextWaitingSince = 0;
 }
@@ -12,6 +12,9 @@ public abstract class Scheduler {
      * Allocate a new scheduler.
      */
     public Scheduler() {
+	defaultQuantum = Config.getInteger(getClass().getSimpleName()
+					   + ".quantum", 0);
+	Lib.assertTrue(defaultQuantum >= 0);
     }
     
     /**
@@ -52,6 +55,42 @@ public abstract class Scheduler {
      */
     public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+    /**
+     * Allocate the ready queue of the specified processor. <tt>KThread</tt>
+     * calls this once for each processor, in order, when it creates the
+     * first thread.
+     *
+     * <p>
+     * By default, each processor gets an independent queue from
+     * <tt>newThreadQueue(false)</tt>. A scheduler can override this to
+     * coordinate the processors' ready queues.
+     *
+     * @param	cpu	the processor number.
+     * @return	the processor's ready queue.
+     */
+    public ThreadQueue newReadyQueue(int cpu) {
+	return newThreadQueue(false);
+    }
+
+    /**
+     * Test whether the specified processor would get a thread from its ready
+     * queue, so that preempting its current thread is worthwhile. Must be
+     * called with interrupts disabled.
+     *
+     * <p>
+     * By default, each processor only runs the threads in its own queue. A
+     * scheduler whose processors take threads from each other's queues should
+     * override this.
+     *
+     * @param	cpu	the processor number.
+     * @param	queued	the number of threads waiting in the processor's own
+     *			ready queue.
+     * @return	<tt>true</tt> if the processor has a thread to switch to.
+     */
+    public boolean hasReadyThread(int cpu, int queued) {
+	return queued > 0;
+    }
+
     /**
      * Get the priority of the specified thread. Must be called with
      * interrupts disabled.
@@ -154,4 +193,49 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
 	return false;
     }
+
+    /**
+     * Add <i>step</i> to the priority of the current thread, unless that would
+     * take it outside the range from <i>minimum</i> to <i>maximum</i>. This
+     * implements <tt>increasePriority()</tt> and <tt>decreasePriority()</tt>
+     * for schedulers whose priorities are a range of integers.
+     *
+     * @param	step	the amount to add, 1 or -1.
+     * @param	minimum	the lowest priority the scheduler allows.
+     * @param	maximum	the highest priority the scheduler allows.
+     * @return	<tt>true</tt> if the priority was changed.
+     */
+    protected boolean stepPriority(int step, int minimum, int maximum) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean inRange = (step > 0) ? (priority <= maximum - step)
+				     : (priority >= minimum - step);
+	if (inRange)
+	    setPriority(thread, priority + step);
+
+	Machine.interrupt().restore(intStatus);
+	return inRange;
+    }
+
+    /**
+     * Return the number of ticks the specified thread may run, once it is
+     * dispatched, before the timer interrupt may preempt it for another
+     * ready thread. The default for every thread is the
+     * <tt>quantum</tt> key of the scheduler's class (for example
+     * <tt>RoundRobinScheduler.quantum</tt>), or 0 if it is not set, which
+     * preempts the thread on any timer interrupt that finds another thread
+     * ready.
+     *
+     * @param	thread	the thread whose quantum to return.
+     * @return	the thread's quantum, in ticks.
+     */
+    public int getQuantum(KThread thread) {
+	return defaultQuantum;
+    }
+
+    /** The quantum of every thread, unless a subclass decides otherwise. */
+    private int defaultQuantum;
 }
@@ -48,6 +48,37 @@ public class Semaphore {
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Atomically wait for this semaphore to become non-zero and decrement it,
+     * but give up if that has not happened within <i>timeout</i> ticks.
+     *
+     * @param	timeout	the maximum number of ticks to wait; the wait ends at
+     *			the first timer interrupt after that. If it is not
+     *			positive, do not wait at all.
+     * @return	<tt>true</tt> if the semaphore was decremented, or
+     *		<tt>false</tt> if the wait timed out.
+     */
+    public boolean P(long timeout) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean decremented = true;
+	if (value == 0) {
+	    if (timeout > 0) {
+		waitQueue.waitForAccess(KThread.currentThread());
+		decremented = ThreadedKernel.alarm.sleepOn(waitQueue, timeout);
+	    }
+	    else {
+		decremented = false;
+	    }
+	}
+	else {
+	    value--;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return decremented;
+    }
+
     /**
      * Atomically increment this semaphore and wake up at most one other thread
      * sleeping on this semaphore.
@@ -0,0 +1,267 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+
+/**
+ * A scheduler that shares the processor among threads in proportion to
+ * their tickets, deterministically.
+ *
+ * <p>
+ * Each thread has a stride, which is inversely proportional to its tickets,
+ * and a pass. A queue always hands access to the waiting thread with the
+ * lowest pass. When a ready queue dispatches a thread, the thread's pass is
+ * advanced by its stride, so a thread with twice the tickets runs twice as
+ * often. Unlike a lottery, the error in each thread's share never grows
+ * beyond a single quantum.
+ *
+ * <p>
+ * A queue keeps its waiting threads in a min-heap ordered by pass, and then
+ * by the order in which they started waiting. It also remembers the pass of
+ * its last winner. A thread that starts waiting with a lower pass, because
+ * it has been blocked for a while, is moved up to that pass, so it cannot
+ * use the time it spent blocked to monopolize the queue.
+ *
+ * <p>
+ * The priority of a thread is its number of tickets. Tickets are not
+ * transferred, so <tt>transferPriority</tt> is ignored.
+ */
+public class StrideScheduler extends Scheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param	transferPriority	ignored. This scheduler does not
+     *					transfer tickets.
+     * @return	a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new StrideQueue(false);
+    }
+
+    /**
+     * Allocate the ready queue of the specified processor. Only the ready
+     * queues advance the pass of the threads they hand out, since only they
+     * hand out processor time.
+     *
+     * @param	cpu	the processor number.
+     * @return	a new stride thread queue that charges for each dispatch.
+     */
+    public ThreadQueue newReadyQueue(int cpu) {
+	return new StrideQueue(true);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).tickets;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		   priority <= priorityMaximum);
+
+	getThreadState(thread).setTickets(priority);
+    }
+
+    public boolean increasePriority() {
+	return stepPriority(1, priorityMinimum, priorityMaximum);
+    }
+
+    public boolean decreasePriority() {
+	return stepPriority(-1, priorityMinimum, priorityMaximum);
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int priorityMaximum = 1 << 20;
+
+    /**
+     * The stride of a thread with a single ticket. A thread's stride is this
+     * divided by its tickets.
+     */
+    private static final long stride1 = 1L << 30;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that hands access to the thread with the lowest
+     * pass.
+     */
+    protected class StrideQueue extends ThreadQueue {
+	StrideQueue(boolean charging) {
+	    this.charging = charging;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    Lib.assertTrue(state.waitingOn == null);
+
+	    state.pass = Math.max(state.pass, floor);
+	    state.waitingOn = this;
+	    state.waitingSince = nextWaitingSince++;
+	    heap.add(state);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState next = heap.peek();
+	    if (next == null)
+		return null;
+
+	    heap.remove(next);
+	    next.waitingOn = null;
+
+	    floor = next.pass;
+	    if (charging)
+		next.pass += next.stride;
+
+	    return next.thread;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.waitingOn != this)
+		return false;
+
+	    heap.remove(state);
+	    state.waitingOn = null;
+	    return true;
+	}
+
+	/**
+	 * Return the next thread that <tt>nextThread()</tt> would return,
+	 * without modifying the state of this queue.
+	 *
+	 * @return	the next thread that <tt>nextThread()</tt> would
+	 *		return.
+	 */
+	protected ThreadState pickNextThread() {
+	    return heap.peek();
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<heap.size(); i++)
+		System.out.print(heap.get(i).thread + "(" + heap.get(i).pass + ") ");
+	}
+
+	/** <tt>true</tt> if this queue advances the pass of its winners. */
+	private boolean charging;
+	/** The waiting threads, lowest pass first. */
+	private IndexedHeap<ThreadState> heap =
+	    new IndexedHeap<ThreadState>(passOrder);
+	/** The pass of the last thread to get access. */
+	private long floor = 0;
+    }
+
+    /**
+     * The scheduling state of a thread.
+     */
+    protected class ThreadState extends IndexedHeap.Element {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Set the tickets of the associated thread. If the thread is waiting,
+	 * the part of its stride it has still to wait out is scaled to the new
+	 * stride.
+	 *
+	 * @param	tickets	the new number of tickets.
+	 */
+	void setTickets(int tickets) {
+	    if (this.tickets == tickets)
+		return;
+
+	    long newStride = stride1 / tickets;
+
+	    if (waitingOn != null) {
+		long remaining = Math.max(pass - waitingOn.floor, 0);
+		pass = waitingOn.floor + remaining / stride * newStride
+		    + remaining % stride * newStride / stride;
+		waitingOn.heap.reposition(this);
+	    }
+
+	    this.tickets = tickets;
+	    stride = newStride;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The tickets of the associated thread. */
+	protected int tickets = priorityDefault;
+	/** The pass added each time the thread gets access. */
+	protected long stride = stride1 / priorityDefault;
+	/** The thread's virtual time; the lowest pass is served first. */
+	protected long pass = 0;
+
+	/** The queue this thread is waiting on, or <tt>null</tt>. */
+	private StrideQueue waitingOn = null;
+	/** Orders threads of equal pass by when they started waiting. */
+	private long waitingSince;
+    }
+
+    /**
+     * Orders waiting threads by pass, lowest first, and then by when they
+     * started waiting.
+     */
+    private Comparator<ThreadState> passOrder = new Comparator<ThreadState>() {
+	public int compare(ThreadState a, ThreadState b) {
+	    if (a.pass != b.pass)
+		return Long.compare(a.pass, b.pass);
+	    return Long.compare(a.waitingSince, b.waitingSince);
+	}
+    };
+
+    /** The next value for <tt>ThreadState.waitingSince</tt>. */
+    private long nextWaitingSince = 0;
+}
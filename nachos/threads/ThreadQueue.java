@@ -1,5 +1,7 @@
 package nachos.threads;
 
+import nachos.machine.*;
+
 /**
  * Schedules access to some sort of resource with limited access constraints. A
  * thread queue can be used to share this limited access among multiple
@@ -91,6 +93,19 @@ public abstract class ThreadQueue {
      */
     public abstract void acquire(KThread thread);
 
+    /**
+     * Notify this thread queue that the specified thread has stopped waiting
+     * for access without receiving it, for example because a timed wait has
+     * expired. The thread is removed as if it had never called
+     * <tt>waitForAccess()</tt>.
+     *
+     * @param	thread	the thread that has stopped waiting.
+     * @return	<tt>true</tt> if the thread was waiting on this queue, or
+     *		<tt>false</tt> if it was not (for example, because it has
+     *		already been returned by <tt>nextThread()</tt>).
+     */
+    public abstract boolean remove(KThread thread);
+
     /**
      * Print out all the threads waiting for access, in no particular order.
      */
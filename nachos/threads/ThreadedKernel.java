@@ -49,6 +49,7 @@ public class ThreadedKernel extends Kernel {
         KThread.selfTest();
         Test.initiateTest();
         Semaphore.selfTest();
+        Alarm.selfTest();
         SynchList.selfTest();
         if (Machine.bank() != null) {
             ElevatorBank.selfTest();
@@ -83,4 +84,8 @@ public class ThreadedKernel extends Kernel {
     private static Communicator dummy5 = null;
     private static Rider dummy6 = null;
     private static ElevatorController dummy7 = null;
+    private static WorkStealingScheduler dummy8 = null;
+    private static BenchmarkKernel dummy9 = null;
+    private static StrideScheduler dummy10 = null;
+    private static MLFQScheduler dummy11 = null;
 }
@@ -0,0 +1,277 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * A scheduler for multiple processors that gives each processor its own
+ * ready deque. A processor runs the threads on its own deque in FIFO order,
+ * and only looks at the other deques when its own is empty. It then steals
+ * from the busiest processor, taking from the tail of that processor's deque.
+ *
+ * <p>
+ * A thread that ran recently on a processor is likely to still have its
+ * working set, and for a user thread its TLB entries, cached there. Such a
+ * thread is cache-hot for <tt>WorkStealingScheduler.cacheHotTicks</tt> ticks
+ * after it was last dispatched, and a thief passes over cache-hot threads
+ * unless the victim has at least two threads waiting.
+ *
+ * <p>
+ * Wait queues other than the ready queues are FIFO, as in the round-robin
+ * scheduler. Steals and load imbalance are reported through
+ * <tt>Stats</tt>.
+ */
+public class WorkStealingScheduler extends Scheduler {
+    /**
+     * Allocate a new work-stealing scheduler.
+     */
+    public WorkStealingScheduler() {
+	cacheHotTicks = Config.getInteger("WorkStealingScheduler.cacheHotTicks",
+					  Stats.TimerTicks * 2);
+
+	deques = new ReadyDeque[Machine.numProcessors()];
+    }
+
+    /**
+     * Allocate a new FIFO thread queue.
+     *
+     * @param	transferPriority	ignored. This scheduler has no
+     *					priority.
+     * @return	a new FIFO thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return fifoScheduler.newThreadQueue(false);
+    }
+
+    /**
+     * Allocate the ready deque of the specified processor.
+     *
+     * @param	cpu	the processor number.
+     * @return	the processor's ready deque.
+     */
+    public ThreadQueue newReadyQueue(int cpu) {
+	Lib.assertTrue(cpu >= 0 && cpu < deques.length);
+	Lib.assertTrue(deques[cpu] == null);
+
+	deques[cpu] = new ReadyDeque(cpu);
+	return deques[cpu];
+    }
+
+    /**
+     * A processor whose own deque is empty can still get a thread by
+     * stealing one.
+     */
+    public boolean hasReadyThread(int cpu, int queued) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return queued > 0 || deques[cpu].hasWork();
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState();
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Add the difference between the longest and shortest ready deques to
+     * the load imbalance statistics.
+     */
+    private void sampleLoad() {
+	int min = Integer.MAX_VALUE, max = 0;
+	for (int i=0; i<deques.length; i++) {
+	    int size = deques[i].waitQueue.size();
+	    min = Math.min(min, size);
+	    max = Math.max(max, size);
+	}
+
+	Stats stats = Machine.stats();
+	stats.totalLoadImbalance += max - min;
+	stats.numLoadSamples++;
+    }
+
+    private class ReadyDeque extends ThreadQueue {
+	ReadyDeque(int cpu) {
+	    this.cpu = cpu;
+	}
+
+	/**
+	 * Add a thread to the tail of this processor's deque.
+	 *
+	 * @param	thread	the thread to append to the deque.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    waitQueue.addLast(thread);
+	}
+
+	/**
+	 * Remove a thread from the head of this processor's deque, or steal
+	 * one from another processor if this deque is empty.
+	 *
+	 * @return	the thread to run next on this processor, or
+	 *		<tt>null</tt> if there is none.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (deques.length > 1)
+		sampleLoad();
+
+	    KThread thread = waitQueue.pollFirst();
+	    if (thread == null)
+		thread = steal();
+
+	    if (thread != null)
+		getThreadState(thread).lastDispatched =
+		    Machine.timer().getTime();
+
+	    return thread;
+	}
+
+	/**
+	 * Remove a thread from this processor's deque.
+	 *
+	 * @param	thread	the thread to remove.
+	 * @return	<tt>true</tt> if the thread was on the deque.
+	 */
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    return waitQueue.remove(thread);
+	}
+
+	/**
+	 * Take a thread from the tail of the busiest other processor's deque,
+	 * preferring the threads that are not cache-hot there.
+	 *
+	 * @return	the stolen thread, or <tt>null</tt> if there is none
+	 *		worth stealing.
+	 */
+	private KThread steal() {
+	    ReadyDeque victim = busiestOther();
+	    KThread thread = stealable(victim);
+
+	    if (thread != null) {
+		victim.waitQueue.removeLastOccurrence(thread);
+
+		Machine.stats().numSteals++;
+		Lib.debug(dbgSteal, "cpu " + cpu + " stole " + thread
+			  + " from cpu " + victim.cpu);
+	    }
+
+	    return thread;
+	}
+
+	/**
+	 * Test whether this processor has a thread to run, either in its own
+	 * deque or one it would steal.
+	 *
+	 * @return	<tt>true</tt> if <tt>nextThread()</tt> would return a
+	 *		thread.
+	 */
+	boolean hasWork() {
+	    return !waitQueue.isEmpty() || stealable(busiestOther()) != null;
+	}
+
+	/**
+	 * Return the other processor with the longest deque, or <tt>null</tt>
+	 * if there is only one processor.
+	 */
+	private ReadyDeque busiestOther() {
+	    ReadyDeque victim = null;
+	    for (int i=1; i<deques.length; i++) {
+		ReadyDeque deque = deques[(cpu + i) % deques.length];
+		if (victim == null ||
+		    deque.waitQueue.size() > victim.waitQueue.size())
+		    victim = deque;
+	    }
+
+	    return victim;
+	}
+
+	/**
+	 * Return the thread this processor would steal from the tail of
+	 * <tt>victim</tt>'s deque, without taking it: the last thread that is
+	 * not cache-hot there, or failing that the last thread if there are
+	 * at least two.
+	 *
+	 * @param	victim	the deque to steal from, or <tt>null</tt>.
+	 * @return	the thread to steal, or <tt>null</tt> if there is none
+	 *		worth stealing.
+	 */
+	private KThread stealable(ReadyDeque victim) {
+	    if (victim == null || victim.waitQueue.isEmpty())
+		return null;
+
+	    long now = Machine.timer().getTime();
+
+	    for (Iterator<KThread> i=victim.waitQueue.descendingIterator();
+		 i.hasNext(); ) {
+		KThread candidate = i.next();
+		ThreadState state = getThreadState(candidate);
+		if (state.lastDispatched < 0 ||
+		    now - state.lastDispatched > cacheHotTicks)
+		    return candidate;
+	    }
+
+	    if (victim.waitQueue.size() >= 2)
+		return victim.waitQueue.peekLast();
+
+	    return null;
+	}
+
+	/**
+	 * The ready deques are never held by a thread, so there is nothing to
+	 * do beyond checking that the deque is empty.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Lib.assertTrue(waitQueue.isEmpty());
+	}
+
+	/**
+	 * Print out the contents of the deque.
+	 */
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (Iterator<KThread> i=waitQueue.iterator(); i.hasNext(); )
+		System.out.print(i.next() + " ");
+	}
+
+	private int cpu;
+	private ArrayDeque<KThread> waitQueue = new ArrayDeque<KThread>();
+    }
+
+    /**
+     * The scheduling state of a thread.
+     */
+    protected class ThreadState {
+	/**
+	 * The time at which the thread was last dispatched to a processor, or
+	 * -1 if it has never run.
+	 */
+	long lastDispatched = -1;
+    }
+
+    /** Supplies the wait queues that are not ready queues. */
+    private RoundRobinScheduler fifoScheduler = new RoundRobinScheduler();
+    /** The ready deque of each processor. */
+    private ReadyDeque[] deques;
+    /** How long a thread stays cache-hot after it is dispatched. */
+    private int cacheHotTicks;
+
+    private static final char dbgSteal = 's';
+}
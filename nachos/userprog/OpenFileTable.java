@@ -0,0 +1,172 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+
+/**
+ * The kernel-wide table of open files. A file that any process has open is
+ * opened on the file system only once, and every file descriptor that refers
+ * to it shares that <tt>OpenFile</tt>, keeping its own file position. The
+ * table counts the descriptors of each file, and closes the file when the last
+ * of them is closed.
+ *
+ * <p>
+ * A file that is unlinked while it is open stays in existence until its last
+ * descriptor is closed, and is only then removed from the file system. Until
+ * then it cannot be opened again.
+ */
+public class OpenFileTable {
+    /**
+     * Allocate a new open file table for the specified file system.
+     *
+     * @param fileSystem the file system whose files this table opens.
+     */
+    public OpenFileTable(FileSystem fileSystem) {
+        this.fileSystem = fileSystem;
+    }
+
+    /**
+     * Open a file, and return a new descriptor for it. A file that is already
+     * open is shared. An existing file is never truncated.
+     *
+     * @param name   the name of the file.
+     * @param create <tt>true</tt> to create the file if it does not exist.
+     * @return a descriptor with its own file position, or <tt>null</tt> if the
+     *         file could not be opened or is waiting to be removed.
+     */
+    public OpenFile open(String name, boolean create) {
+        if (fileSystem == null)
+            return null;
+
+        lock.acquire();
+
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            OpenFile file = fileSystem.open(name, false);
+            if (file == null && create)
+                file = fileSystem.open(name, true);
+            if (file != null) {
+                entry = new Entry(name, file);
+                entries.put(name, entry);
+            }
+        } else if (entry.unlinked) {
+            entry = null;
+        }
+
+        Descriptor descriptor = null;
+        if (entry != null) {
+            entry.references++;
+            descriptor = new Descriptor(entry);
+        }
+
+        lock.release();
+        return descriptor;
+    }
+
+    /**
+     * Remove a file from the file system, or, if it is open, remove it once
+     * its last descriptor is closed.
+     *
+     * @param name the name of the file.
+     * @return <tt>true</tt> if the file was, or will be, removed.
+     */
+    public boolean unlink(String name) {
+        if (fileSystem == null)
+            return false;
+
+        lock.acquire();
+
+        boolean removed;
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            removed = fileSystem.remove(name);
+        } else {
+            removed = !entry.unlinked;
+            entry.unlinked = true;
+        }
+
+        lock.release();
+        return removed;
+    }
+
+    /**
+     * Drop one descriptor of a file, closing the file, and removing it if it
+     * has been unlinked, when none are left.
+     */
+    private void release(Entry entry) {
+        lock.acquire();
+
+        Lib.assertTrue(entry.references > 0);
+        if (--entry.references == 0) {
+            entries.remove(entry.name);
+            entry.file.close();
+
+            if (entry.unlinked)
+                fileSystem.remove(entry.name);
+        }
+
+        lock.release();
+    }
+
+    /**
+     * An open file and the number of descriptors that refer to it.
+     */
+    private static class Entry {
+        Entry(String name, OpenFile file) {
+            this.name = name;
+            this.file = file;
+        }
+
+        final String name;
+        final OpenFile file;
+        int references = 0;
+        boolean unlinked = false;
+    }
+
+    /**
+     * A file descriptor: a file position in a shared open file.
+     */
+    private class Descriptor extends OpenFileWithPosition {
+        Descriptor(Entry entry) {
+            super(fileSystem, entry.name);
+            this.entry = entry;
+        }
+
+        public int read(int pos, byte[] buf, int offset, int length) {
+            if (entry == null)
+                return -1;
+
+            return entry.file.read(pos, buf, offset, length);
+        }
+
+        public int write(int pos, byte[] buf, int offset, int length) {
+            if (entry == null)
+                return -1;
+
+            return entry.file.write(pos, buf, offset, length);
+        }
+
+        public int length() {
+            if (entry == null)
+                return -1;
+
+            return entry.file.length();
+        }
+
+        public void close() {
+            if (entry != null) {
+                release(entry);
+                entry = null;
+            }
+        }
+
+        /** The shared file, or <tt>null</tt> once this is closed. */
+        private Entry entry;
+    }
+
+    private FileSystem fileSystem;
+    private HashMap<String, Entry> entries = new HashMap<String, Entry>();
+    private Lock lock = new Lock();
+}
@@ -3,8 +3,6 @@ package nachos.userprog;
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
-import java.util.Collections;
-import java.util.LinkedList;
 
 /**
  * A kernel that can support multiple user processes.
@@ -25,19 +23,24 @@ public class UserKernel extends ThreadedKernel {
         super.initialize(args);
 
         console = new SynchConsole(Machine.console());
+        openFiles = new OpenFileTable(fileSystem);
         pageLock = new Lock();
-        freePages = new LinkedList<>();
 
-        for (int i = 0; i < Machine.processor().getNumPhysPages(); i++) {
-            freePages.add(i);
-        }
-        Collections.shuffle(freePages);
+        // stack the frames so that the lowest are handed out first
+        int numPhysPages = Machine.processor().getNumPhysPages();
+        freePages = new int[numPhysPages];
+        for (int i = 0; i < numPhysPages; i++)
+            freePages[i] = numPhysPages - 1 - i;
+        numFreePages = numPhysPages;
+        allocatedPages = new long[(numPhysPages + 63) / 64];
 
-        Machine.processor().setExceptionHandler(new Runnable() {
+        Runnable handler = new Runnable() {
             public void run() {
                 exceptionHandler();
             }
-        });
+        };
+        for (int i = 0; i < Machine.numProcessors(); i++)
+            Machine.processor(i).setExceptionHandler(handler);
     }
 
     /**
@@ -116,28 +119,115 @@ public class UserKernel extends ThreadedKernel {
         super.terminate();
     }
 
+    /**
+     * Allocate a free physical page.
+     *
+     * @return the physical page number, or -1 if there are no free pages.
+     */
     public static int allocatePage() {
-        Lib.assertTrue(!freePages.isEmpty());
-
         pageLock.acquire();
-        int page = freePages.removeLast();
+
+        int ppn = -1;
+        if (numFreePages > 0) {
+            ppn = freePages[--numFreePages];
+            markAllocated(ppn, true);
+        }
+
         pageLock.release();
+        return ppn;
+    }
 
-        return page;
+    /**
+     * Allocate <i>n</i> free physical pages at once. Either all of them are
+     * allocated, or none are.
+     *
+     * @param n the number of pages to allocate.
+     * @return the physical page numbers, or <tt>null</tt> if there are fewer
+     *         than <i>n</i> free pages.
+     */
+    public static int[] allocatePages(int n) {
+        Lib.assertTrue(n >= 0);
+
+        pageLock.acquire();
+
+        int[] ppns = null;
+        if (n <= numFreePages) {
+            ppns = new int[n];
+            for (int i = 0; i < n; i++) {
+                ppns[i] = freePages[--numFreePages];
+                markAllocated(ppns[i], true);
+            }
+        }
+
+        pageLock.release();
+        return ppns;
     }
 
+    /**
+     * Free a physical page allocated by <tt>allocatePage()</tt> or
+     * <tt>allocatePages()</tt>.
+     *
+     * @param ppn the physical page number.
+     */
     public static void freePage(int ppn) {
         pageLock.acquire();
-        freePages.add(ppn);
+
+        markAllocated(ppn, false);
+        freePages[numFreePages++] = ppn;
+
+        pageLock.release();
+    }
+
+    /**
+     * Free several physical pages at once.
+     *
+     * @param ppns the physical page numbers.
+     */
+    public static void freePages(int[] ppns) {
+        pageLock.acquire();
+
+        for (int i = 0; i < ppns.length; i++) {
+            markAllocated(ppns[i], false);
+            freePages[numFreePages++] = ppns[i];
+        }
+
         pageLock.release();
     }
 
+    /**
+     * Return the number of free physical pages.
+     *
+     * @return the number of physical pages that can still be allocated.
+     */
+    public static int numFreePages() {
+        return numFreePages;
+    }
+
+    /**
+     * Record that a page has been allocated or freed, catching pages that are
+     * freed twice or were never allocated.
+     */
+    private static void markAllocated(int ppn, boolean allocated) {
+        Lib.assertTrue(ppn >= 0 && ppn < freePages.length);
+
+        long bit = 1L << (ppn & 63);
+        Lib.assertTrue(((allocatedPages[ppn >> 6] & bit) != 0) != allocated);
+        allocatedPages[ppn >> 6] ^= bit;
+    }
+
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
 
+    /** The files opened by user processes, shared between them. */
+    public static OpenFileTable openFiles;
+
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
 
-    private static LinkedList<Integer> freePages;
+    /** A stack of the free physical pages, <tt>numFreePages</tt> deep. */
+    private static int[] freePages;
+    private static int numFreePages;
+    /** A bitmap of the allocated physical pages. */
+    private static long[] allocatedPages;
     private static Lock pageLock;
 }
@@ -23,18 +23,12 @@ public class UserProcess {
     /**
      * Allocate a new process.
      */
-
-    OpenFile stdIn;
-    OpenFile stdOut;
-
     public UserProcess() {
-        int numPhysPages = Machine.processor().getNumPhysPages();
-        pageTable = new TranslationEntry[numPhysPages];
-        for (int i = 0; i < numPhysPages; i++)
-            pageTable[i] = new TranslationEntry(i, i, true, false, false, false);
-
-        stdIn = UserKernel.console.openForReading();
-        stdOut = UserKernel.console.openForWriting();
+        int maxOpenFiles = Config.getInteger("UserProcess.maxOpenFiles", 16);
+        Lib.assertTrue(maxOpenFiles >= 16);
+        fileTable = new OpenFile[maxOpenFiles];
+        fileTable[0] = UserKernel.console.openForReading();
+        fileTable[1] = UserKernel.console.openForWriting();
         UserProcess.runningProcesses++;
         UserProcess.numProcesses++;
         processId = UserProcess.numProcesses;
@@ -86,6 +80,15 @@ public class UserProcess {
         Machine.processor().setPageTable(pageTable);
     }
 
+    /**
+     * Return the identifier of this process, as returned by <tt>exec()</tt>.
+     *
+     * @return the process ID.
+     */
+    public int getProcessId() {
+        return processId;
+    }
+
     /**
      * Read a null-terminated string from this process's virtual memory. Read at
      * most <tt>maxLength + 1</tt> bytes from the specified address, search for the
@@ -143,29 +146,19 @@ public class UserProcess {
 
         byte[] memory = Machine.processor().getMemory();
 
-        // for now, just assume that virtual addresses equal physical addresses
-        if (vaddr < 0 || vaddr >= memory.length)
-            return 0;
-
-        int amount = Math.min(length, memory.length - vaddr);
-        int readData = 0;
-        // System.arraycopy(memory, vaddr, data, offset, amount);
-        for (int i = 0; i < amount; i++) {
-            int vpn = vaddr + i;
-            TranslationEntry translationEntry = pageTable[vpn / pageSize];
-
-            if (translationEntry == null || !translationEntry.valid) {
-                Lib.debug(dbgProcess, "invalid memory for reading");
+        // copy a page at a time, stopping at the first page that is not mapped
+        int transferred = 0;
+        while (transferred < length) {
+            int paddr = translate(vaddr + transferred, false);
+            if (paddr < 0)
                 break;
-            }
 
-            translationEntry.used = true;
-            int ppn = translationEntry.ppn * pageSize + vpn % pageSize;
-            data[i] = memory[ppn];
-            readData++;
+            int amount = Math.min(length - transferred, pageSize - paddr % pageSize);
+            System.arraycopy(memory, paddr, data, offset + transferred, amount);
+            transferred += amount;
         }
 
-        return readData;
+        return transferred;
     }
 
     /**
@@ -198,30 +191,197 @@ public class UserProcess {
 
         byte[] memory = Machine.processor().getMemory();
 
-        // for now, just assume that virtual addresses equal physical addresses
-        if (vaddr < 0 || vaddr >= memory.length)
-            return 0;
+        // copy a page at a time, stopping at the first page that is not mapped
+        // or is read-only
+        int transferred = 0;
+        while (transferred < length) {
+            int paddr = translate(vaddr + transferred, true);
+            if (paddr < 0)
+                break;
+
+            int amount = Math.min(length - transferred, pageSize - paddr % pageSize);
+            System.arraycopy(data, offset + transferred, memory, paddr, amount);
+            transferred += amount;
+        }
 
-        int amount = Math.min(length, memory.length - vaddr);
-        int writeData = 0;
-        // System.arraycopy(data, offset, memory, vaddr, amount);
-        for (int i = 0; i < amount; i++) {
-            int vpn = vaddr + i;
-            TranslationEntry translationEntry = pageTable[vpn / pageSize];
+        return transferred;
+    }
 
-            if (translationEntry == null || !translationEntry.valid) {
-                Lib.debug(dbgProcess, "invalid memory for reading");
-                break;
+    /**
+     * Read from a file straight into this process's virtual memory. Each run of
+     * pages that are contiguous in physical memory is passed to the file as one
+     * span of the processor's memory array, so the data is copied only once and
+     * no buffer is allocated. Stops at the first page that is not mapped or is
+     * read-only, and after the first short read.
+     *
+     * @param file   the file to read.
+     * @param vaddr  the first byte of virtual memory to write.
+     * @param length the number of bytes to read.
+     * @return the number of bytes read, or -1 if the file could not be read or
+     *         the first page is not writable.
+     */
+    protected int readFile(OpenFile file, int vaddr, int length) {
+        return transferFile(file, vaddr, length, true);
+    }
+
+    /**
+     * Write to a file straight from this process's virtual memory, a run of
+     * physically contiguous pages at a time, as in <tt>readFile()</tt>.
+     *
+     * @param file   the file to write.
+     * @param vaddr  the first byte of virtual memory to read.
+     * @param length the number of bytes to write.
+     * @return the number of bytes written, or -1 if the file could not be
+     *         written or the first page is not mapped.
+     */
+    protected int writeFile(OpenFile file, int vaddr, int length) {
+        return transferFile(file, vaddr, length, false);
+    }
+
+    private int transferFile(OpenFile file, int vaddr, int length, boolean read) {
+        Lib.assertTrue(length >= 0);
+
+        byte[] memory = Machine.processor().getMemory();
+
+        int transferred = 0;
+        while (transferred < length) {
+            TranslationEntry entry = findTranslation(vaddr + transferred, read);
+            if (entry == null)
+                return (transferred == 0) ? -1 : transferred;
+
+            int paddr = Processor.makeAddress(entry.ppn, Processor.offsetFromAddress(vaddr + transferred));
+
+            // extend the span over following pages while they are adjacent
+            int amount = Math.min(length - transferred, pageSize - paddr % pageSize);
+            while (transferred + amount < length) {
+                TranslationEntry next = findTranslation(vaddr + transferred + amount, read);
+                if (next == null || Processor.makeAddress(next.ppn, 0) != paddr + amount)
+                    break;
+                amount += Math.min(length - transferred - amount, pageSize);
+            }
+
+            int result = read ? file.read(memory, paddr, amount) : file.write(memory, paddr, amount);
+            if (result < 0)
+                return (transferred == 0) ? -1 : transferred;
+
+            // only the pages the file actually reached were accessed
+            if (result > 0) {
+                int firstPage = Processor.pageFromAddress(vaddr + transferred);
+                int lastPage = Processor.pageFromAddress(vaddr + transferred + result - 1);
+                for (int vpn = firstPage; vpn <= lastPage; vpn++)
+                    markAccessed(getTranslation(vpn), read);
             }
 
-            translationEntry.used = true;
-            int ppn = translationEntry.ppn * pageSize + vpn % pageSize;
-            memory[ppn] = data[i];
-            writeData++;
+            transferred += result;
+            if (result < amount)
+                break;
+        }
+
+        return transferred;
+    }
+
+    /**
+     * Translate a virtual address of this process to a physical address, and
+     * mark its page used, and also dirty if it is being written. The rest of
+     * the page can be accessed through the same translation.
+     *
+     * @param vaddr the virtual address to translate.
+     * @param write <tt>true</tt> if the page is about to be written.
+     * @return the physical address, or -1 if the page is not mapped, or is
+     *         read-only and <tt>write</tt> is <tt>true</tt>.
+     */
+    protected int translate(int vaddr, boolean write) {
+        TranslationEntry entry = findTranslation(vaddr, write);
+        if (entry == null) {
+            Lib.debug(dbgProcess, "invalid memory for " + (write ? "writing" : "reading"));
+            return -1;
         }
 
-        return writeData;
+        markAccessed(entry, write);
 
+        return Processor.makeAddress(entry.ppn, Processor.offsetFromAddress(vaddr));
+    }
+
+    /**
+     * Return the translation of the page holding a virtual address, if the
+     * page can be accessed, without marking it used or dirty.
+     *
+     * @param vaddr the virtual address.
+     * @param write <tt>true</tt> if the page would be written.
+     * @return the page's translation entry, or <tt>null</tt> if the page is
+     *         not mapped, or is read-only and <tt>write</tt> is <tt>true</tt>.
+     */
+    private TranslationEntry findTranslation(int vaddr, boolean write) {
+        if (vaddr < 0)
+            return null;
+
+        TranslationEntry entry = getTranslation(Processor.pageFromAddress(vaddr));
+        if (entry == null || !entry.valid || (write && entry.readOnly))
+            return null;
+
+        return entry;
+    }
+
+    /**
+     * Mark a page used, and also dirty if it was written.
+     */
+    private void markAccessed(TranslationEntry entry, boolean write) {
+        entry.used = true;
+        if (write)
+            entry.dirty = true;
+    }
+
+    /**
+     * Allocate an empty page table with room for the specified number of
+     * pages. Called by <tt>load()</tt> once it knows the size of the program,
+     * its stack and its arguments.
+     *
+     * @param numPages the number of pages the program starts with.
+     */
+    protected void allocatePageTable(int numPages) {
+        pageTable = new TranslationEntry[numPages];
+    }
+
+    /**
+     * Return the translation of a virtual page of this process.
+     *
+     * @param vpn the virtual page number.
+     * @return the page's translation entry, or <tt>null</tt> if the page is
+     *         not mapped.
+     */
+    protected TranslationEntry getTranslation(int vpn) {
+        if (vpn < 0 || vpn >= pageTable.length)
+            return null;
+
+        return pageTable[vpn];
+    }
+
+    /**
+     * Set the translation of a virtual page of this process, growing the page
+     * table if the page lies beyond its end.
+     *
+     * @param vpn   the virtual page number.
+     * @param entry the page's new translation entry, or <tt>null</tt> to unmap
+     *              the page.
+     */
+    protected void setTranslation(int vpn, TranslationEntry entry) {
+        Lib.assertTrue(vpn >= 0 && vpn < Processor.maxPages);
+
+        if (vpn >= pageTable.length) {
+            if (entry == null)
+                return;
+
+            int length = (int) Math.min(Math.max((long) vpn + 1, 2L * pageTable.length), Processor.maxPages);
+            TranslationEntry[] grown = new TranslationEntry[length];
+            System.arraycopy(pageTable, 0, grown, 0, pageTable.length);
+            pageTable = grown;
+
+            // the processor holds on to the old array
+            if (UserKernel.currentProcess() == this && !Machine.processor().hasTLB())
+                Machine.processor().setPageTable(pageTable);
+        }
+
+        pageTable[vpn] = entry;
     }
 
     /**
@@ -281,18 +441,14 @@ public class UserProcess {
         initialPC = coff.getEntryPoint();
 
         // next comes the stack; stack pointer initially points to top of it
-        for (int i = 0; i < stackPages; i++) {
-            pageTable[numPages + i] = new TranslationEntry(numPages + i, UserKernel.allocatePage(), true, false, false,
-                    false);
-        }
         numPages += stackPages;
         initialSP = numPages * pageSize;
 
-        pageTable[numPages] = new TranslationEntry(numPages, UserKernel.allocatePage(), true, false, false, false);
-
         // and finally reserve 1 page for arguments
         numPages++;
 
+        allocatePageTable(numPages);
+
         if (!loadSections())
             return false;
 
@@ -325,12 +481,17 @@ public class UserProcess {
      */
     protected boolean loadSections() {
 
-        if (numPages > Machine.processor().getNumPhysPages()) {
+        int[] ppns = UserKernel.allocatePages(numPages);
+        if (ppns == null) {
             coff.close();
             Lib.debug(dbgProcess, "\tinsufficient physical memory");
             return false;
         }
 
+        // every page is writable, except those of read-only sections
+        for (int vpn = 0; vpn < numPages; vpn++)
+            setTranslation(vpn, new TranslationEntry(vpn, ppns[vpn], true, false, false, false));
+
         // load sections
         for (int s = 0; s < coff.getNumSections(); s++) {
             CoffSection section = coff.getSection(s);
@@ -341,11 +502,9 @@ public class UserProcess {
             for (int i = 0; i < section.getLength(); i++) {
                 int vpn = section.getFirstVPN() + i;
 
-                // for now, just assume virtual addresses=physical addresses
-                pageTable[vpn] = new TranslationEntry(vpn, UserKernel.allocatePage(), true, section.isReadOnly(), false,
-                        false);
-
-                section.loadPage(i, pageTable[vpn].ppn);
+                TranslationEntry entry = getTranslation(vpn);
+                entry.readOnly = section.isReadOnly();
+                section.loadPage(i, entry.ppn);
             }
         }
 
@@ -358,9 +517,12 @@ public class UserProcess {
      */
     protected void unloadSections() {
         Lib.debug(dbgProcess, "\texiting " + numPages + " pages from " + UThread.currentThread().getName());
+        int[] ppns = new int[numPages];
         for (int i = 0; i < numPages; i++) {
-            UserKernel.freePage(pageTable[i].ppn);
+            ppns[i] = getTranslation(i).ppn;
+            setTranslation(i, null);
         }
+        UserKernel.freePages(ppns);
     }
 
     /**
@@ -397,29 +559,96 @@ public class UserProcess {
         return 0;
     }
 
+    private int handleCreate(int nameAddr) {
+        return openFile(nameAddr, true);
+    }
+
+    private int handleOpen(int nameAddr) {
+        return openFile(nameAddr, false);
+    }
+
+    private int handleRead(int fileDescriptor, int buffer, int size) {
+        OpenFile file = getFile(fileDescriptor);
+        if (file == null || buffer < 0 || size < 0) {
+            return -1;
+        }
+        return readFile(file, buffer, size);
+    }
+
     private int handleWrite(int fileDescriptor, int buffer, int size) {
-        if (fileDescriptor != 1 || buffer < 0 || size < 0) {
+        OpenFile file = getFile(fileDescriptor);
+        if (file == null || buffer < 0 || size < 0) {
             return -1;
         }
-        byte[] buff = new byte[size];
-        int qn = readVirtualMemory(buffer, buff);
-        stdOut.write(buff, 0, qn);
-        return qn;
+        return writeFile(file, buffer, size);
     }
 
-    private int handleRead(int fileDescriptor, int buffer, int size) {
-        if (fileDescriptor != 0 || buffer < 0 || size < 0) {
+    private int handleClose(int fileDescriptor) {
+        OpenFile file = getFile(fileDescriptor);
+        if (file == null) {
+            return -1;
+        }
+        fileTable[fileDescriptor] = null;
+        file.close();
+        return 0;
+    }
+
+    private int handleUnlink(int nameAddr) {
+        String name = readVirtualMemoryString(nameAddr, maxNameLength);
+        if (name == null) {
+            return -1;
+        }
+        return UserKernel.openFiles.unlink(name) ? 0 : -1;
+    }
+
+    /**
+     * Open the file named at <tt>nameAddr</tt> in the lowest free file
+     * descriptor.
+     */
+    private int openFile(int nameAddr, boolean create) {
+        String name = readVirtualMemoryString(nameAddr, maxNameLength);
+        if (name == null) {
             return -1;
         }
-        byte[] buff = new byte[size];
-        stdIn.read(buff, 0, size);
-        int qn = writeVirtualMemory(buffer, buff);
-        return qn;
+
+        int fileDescriptor = 0;
+        while (fileDescriptor < fileTable.length && fileTable[fileDescriptor] != null)
+            fileDescriptor++;
+        if (fileDescriptor == fileTable.length) {
+            return -1;
+        }
+
+        OpenFile file = UserKernel.openFiles.open(name, create);
+        if (file == null) {
+            return -1;
+        }
+
+        fileTable[fileDescriptor] = file;
+        return fileDescriptor;
+    }
+
+    /**
+     * Return the file open in a file descriptor, or <tt>null</tt> if the file
+     * descriptor is not open.
+     */
+    private OpenFile getFile(int fileDescriptor) {
+        if (fileDescriptor < 0 || fileDescriptor >= fileTable.length) {
+            return null;
+        }
+        return fileTable[fileDescriptor];
     }
 
     private int handleExit(int status) {
         int ret = -1;
         exitCode = status;
+
+        for (int i = 0; i < fileTable.length; i++) {
+            if (fileTable[i] != null) {
+                fileTable[i].close();
+                fileTable[i] = null;
+            }
+        }
+
         unloadSections();
 
         UserProcess.runningProcesses--;
@@ -439,9 +668,6 @@ public class UserProcess {
 
         if (retStatusAddr < 0 || retStatusAddr / pageSize >= numPages)
             return ret;
-        else if (pageTable.length <= (retStatusAddr / pageSize)) {
-            return ret;
-        }
 
         UserProcess childProcess = null;
         for (UserProcess child : children) {
@@ -475,15 +701,9 @@ public class UserProcess {
 
         if (nameAddr < 0 || nameAddr / pageSize >= numPages)
             return ret;
-        else if (pageTable.length <= (nameAddr / pageSize)) {
-            return ret;
-        }
 
         if (argvAddr < 0 || argvAddr / pageSize >= numPages)
             return ret;
-        else if (pageTable.length <= (argvAddr / pageSize)) {
-            return ret;
-        }
 
         if (!(0 <= argc && argc < 256))
             return ret;
@@ -500,13 +720,10 @@ public class UserProcess {
 
             if (argAddress < 0 || argAddress / pageSize >= numPages)
                 return ret;
-            else if (pageTable.length <= (argAddress / pageSize)) {
-                return ret;
-            }
             argv[i] = readVirtualMemoryString(argAddress, 256);
         }
 
-        UserProcess child = new UserProcess();
+        UserProcess child = newUserProcess();
         children.add(child);
 
         if (!child.execute(filename, argv))
@@ -601,6 +818,18 @@ public class UserProcess {
             case syscallExec:
                 return handleExec(a0, a1, a2);
 
+            case syscallCreate:
+                return handleCreate(a0);
+
+            case syscallOpen:
+                return handleOpen(a0);
+
+            case syscallClose:
+                return handleClose(a0);
+
+            case syscallUnlink:
+                return handleUnlink(a0);
+
             default:
                 Lib.debug(dbgProcess, "Unknown syscall " + syscall);
                 Lib.assertNotReached("Unknown system call!");
@@ -623,6 +852,9 @@ public class UserProcess {
                 int result = handleSyscall(processor.readRegister(Processor.regV0),
                         processor.readRegister(Processor.regA0), processor.readRegister(Processor.regA1),
                         processor.readRegister(Processor.regA2), processor.readRegister(Processor.regA3));
+
+                // the syscall may have blocked and resumed on another processor
+                processor = Machine.processor();
                 processor.writeRegister(Processor.regV0, result);
                 processor.advancePC();
                 break;
@@ -636,11 +868,17 @@ public class UserProcess {
     /** The program being run by this process. */
     protected Coff coff;
 
-    /** This process's page table. */
-    protected TranslationEntry[] pageTable;
+    /**
+     * This process's page table, which the processor uses directly when it has
+     * no TLB. Sized to the pages the program uses, and grown on demand.
+     */
+    protected TranslationEntry[] pageTable = new TranslationEntry[0];
     /** The number of contiguous pages occupied by the program. */
     protected int numPages;
 
+    /** The files open in each file descriptor, or <tt>null</tt>. */
+    protected OpenFile[] fileTable;
+
     /** The number of pages in the program's stack. */
     protected final int stackPages = 8;
 
@@ -648,6 +886,8 @@ public class UserProcess {
     private int argc, argv;
 
     private static final int pageSize = Processor.pageSize;
+    /** The longest file name a syscall accepts. */
+    private static final int maxNameLength = 256;
     private static final char dbgProcess = 'a';
 
     private int exitCode = 0;
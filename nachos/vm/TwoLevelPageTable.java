@@ -0,0 +1,74 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * A page table for large, sparse address spaces. A virtual page number is
+ * split into a directory index and an index into a leaf table of
+ * <tt>leafSize</tt> entries, and leaf tables are only allocated once a page
+ * in their range is mapped. The table therefore costs memory in proportion to
+ * the regions of the address space in use, not to the highest page number.
+ *
+ * <p>
+ * The processor cannot walk this table, so it can only be used with a TLB.
+ */
+public class TwoLevelPageTable {
+    /**
+     * Allocate a new, empty two-level page table.
+     */
+    public TwoLevelPageTable() {
+    }
+
+    /**
+     * Return the translation of a virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the page's translation entry, or <tt>null</tt> if the page is
+     *		not mapped.
+     */
+    public TranslationEntry get(int vpn) {
+	if (vpn < 0 || vpn >= Processor.maxPages)
+	    return null;
+
+	TranslationEntry[] leaf = directory[vpn >> leafBits];
+	return (leaf == null) ? null : leaf[vpn & (leafSize-1)];
+    }
+
+    /**
+     * Set the translation of a virtual page, allocating its leaf table if
+     * need be. A leaf table is freed once its last page is unmapped.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	entry	the page's new translation entry, or <tt>null</tt> to
+     *			unmap the page.
+     */
+    public void put(int vpn, TranslationEntry entry) {
+	Lib.assertTrue(vpn >= 0 && vpn < Processor.maxPages);
+
+	int dir = vpn >> leafBits;
+	TranslationEntry[] leaf = directory[dir];
+	if (leaf == null) {
+	    if (entry == null)
+		return;
+
+	    leaf = directory[dir] = new TranslationEntry[leafSize];
+	}
+
+	TranslationEntry old = leaf[vpn & (leafSize-1)];
+	leaf[vpn & (leafSize-1)] = entry;
+
+	if (old == null && entry != null)
+	    mapped[dir]++;
+	else if (old != null && entry == null && --mapped[dir] == 0)
+	    directory[dir] = null;
+    }
+
+    private static final int leafBits = 10;
+    private static final int leafSize = 1 << leafBits;
+
+    /** The leaf tables, or <tt>null</tt> for ranges with no pages mapped. */
+    private TranslationEntry[][] directory =
+	new TranslationEntry[(Processor.maxPages + leafSize - 1) >> leafBits][];
+    /** The number of pages mapped in each leaf table. */
+    private int[] mapped = new int[directory.length];
+}
@@ -21,6 +21,14 @@ public class VMKernel extends UserKernel {
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	Runnable shootdown = new Runnable() {
+		public void run() {
+		    dropReleasedASIDs();
+		}
+	    };
+	for (int i=0; i<Machine.numProcessors(); i++)
+	    Machine.processor(i).setIPIHandler(shootdown);
     }
 
     /**
@@ -44,6 +52,105 @@ public class VMKernel extends UserKernel {
 	super.terminate();
     }
 
+    /**
+     * Switch the processor to the address space of the specified process.
+     * ASIDs are handed out in generations: a process keeps its ASID until
+     * every ASID has been handed out, at which point the TLB is flushed and
+     * a new generation begins.
+     *
+     * @param	process	the process about to run.
+     */
+    static void activateASID(VMProcess process) {
+	if (process.asidGeneration != asidGeneration) {
+	    if (nextASID == Processor.numASIDs) {
+		// the other processors are not running, so flush theirs too
+		for (int cpu=0; cpu<Machine.numProcessors(); cpu++) {
+		    Processor processor = Machine.processor(cpu);
+		    for (int i=0; i<processor.getTLBSize(); i++)
+			evictTLBEntry(processor, i);
+		}
+
+		for (int i=0; i<Processor.numASIDs; i++)
+		    asidOwners[i] = null;
+
+		asidGeneration++;
+		nextASID = 0;
+	    }
+
+	    process.asid = nextASID++;
+	    process.asidGeneration = asidGeneration;
+	    asidOwners[process.asid] = process;
+	}
+
+	Machine.processor().setASID(process.asid);
+    }
+
+    /**
+     * Discard the TLB entries of an exiting process. Its ASID is not reused
+     * until the next generation, so the other processors are only asked to
+     * drop their entries with an IPI.
+     *
+     * @param	process	the exiting process.
+     */
+    static void releaseASID(VMProcess process) {
+	if (process.asidGeneration != asidGeneration)
+	    return;
+
+	asidOwners[process.asid] = null;
+
+	dropReleasedASIDs();
+
+	for (int cpu=0; cpu<Machine.numProcessors(); cpu++) {
+	    if (cpu != Machine.currentProcessor())
+		Machine.processor(cpu).sendIPI();
+	}
+    }
+
+    /**
+     * Invalidate the current processor's TLB entries whose ASIDs no longer
+     * belong to a process. This is the TLB shootdown IPI handler.
+     */
+    private static void dropReleasedASIDs() {
+	Processor processor = Machine.processor();
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry entry = processor.readTLBEntry(i);
+	    if (entry.valid && asidOwners[entry.asid] == null) {
+		entry.valid = false;
+		processor.writeTLBEntry(i, entry);
+	    }
+	}
+    }
+
+    /**
+     * Invalidate a TLB entry of the current processor, first copying its
+     * used and dirty bits back into the page table of the process that owns
+     * it.
+     *
+     * @param	number	the index of the TLB entry.
+     */
+    static void evictTLBEntry(int number) {
+	evictTLBEntry(Machine.processor(), number);
+    }
+
+    private static void evictTLBEntry(Processor processor, int number) {
+	TranslationEntry entry = processor.readTLBEntry(number);
+	if (!entry.valid)
+	    return;
+
+	if (asidOwners[entry.asid] != null)
+	    asidOwners[entry.asid].syncTLBEntry(entry);
+
+	entry.valid = false;
+	processor.writeTLBEntry(number, entry);
+    }
+
+    /** The current ASID generation. */
+    private static int asidGeneration = 0;
+    /** The next unused ASID in the current generation. */
+    private static int nextASID = 0;
+    /** The process holding each ASID in the current generation. */
+    private static VMProcess[] asidOwners = new VMProcess[Processor.numASIDs];
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
@@ -14,6 +14,9 @@ public class VMProcess extends UserProcess {
      */
     public VMProcess() {
 	super();
+
+	if (Config.getBoolean("VMProcess.twoLevelPageTable", false))
+	    twoLevelPageTable = new TwoLevelPageTable();
     }
 
     /**
@@ -29,7 +32,7 @@ public class VMProcess extends UserProcess {
      * <tt>UThread.restoreState()</tt>.
      */
     public void restoreState() {
-	super.restoreState();
+	VMKernel.activateASID(this);
     }
 
     /**
@@ -42,10 +45,41 @@ public class VMProcess extends UserProcess {
 	return super.loadSections();
     }
 
+    /**
+     * Allocate the page table. With <tt>VMProcess.twoLevelPageTable</tt> set,
+     * pages are kept in a two-level table that only grows with the regions in
+     * use, so the linear table is not needed.
+     *
+     * @param	numPages	the number of pages the program starts with.
+     */
+    protected void allocatePageTable(int numPages) {
+	if (twoLevelPageTable == null)
+	    super.allocatePageTable(numPages);
+    }
+
+    protected TranslationEntry getTranslation(int vpn) {
+	if (twoLevelPageTable != null)
+	    return twoLevelPageTable.get(vpn);
+
+	return super.getTranslation(vpn);
+    }
+
+    protected void setTranslation(int vpn, TranslationEntry entry) {
+	if (twoLevelPageTable != null)
+	    twoLevelPageTable.put(vpn, entry);
+	else
+	    super.setTranslation(vpn, entry);
+    }
+
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
+	Machine.stats().addProcessTLBMisses(UThread.currentThread().getName()
+					    + " (pid " + getProcessId() + ")",
+					    numTLBMisses);
+
+	VMKernel.releaseASID(this);
 	super.unloadSections();
     }    
 
@@ -61,12 +95,79 @@ public class VMProcess extends UserProcess {
 	Processor processor = Machine.processor();
 
 	switch (cause) {
+	case Processor.exceptionTLBMiss:
+	    numTLBMisses++;
+	    handleTLBMiss(processor.readRegister(Processor.regBadVAddr));
+	    break;
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
 	
+    /**
+     * Load the translation for the virtual address that missed in the TLB,
+     * evicting an entry from the page's TLB set if it is full.
+     *
+     * @param	vaddr	the virtual address that caused the TLB miss.
+     */
+    private void handleTLBMiss(int vaddr) {
+	Processor processor = Machine.processor();
+
+	int vpn = Processor.pageFromAddress(vaddr);
+	TranslationEntry translation = getTranslation(vpn);
+	if (translation == null || !translation.valid) {
+	    super.handleException(Processor.exceptionTLBMiss);
+	    return;
+	}
+
+	int set = processor.getTLBSet(vpn);
+	int ways = processor.getTLBAssociativity();
+
+	int victim = -1;
+	for (int i=set; i<set+ways; i++) {
+	    if (!processor.readTLBEntry(i).valid) {
+		victim = i;
+		break;
+	    }
+	}
+	if (victim == -1)
+	    victim = set + (nextVictim++ % ways);
+
+	VMKernel.evictTLBEntry(victim);
+
+	TranslationEntry entry = new TranslationEntry(translation);
+	entry.asid = asid;
+	processor.writeTLBEntry(victim, entry);
+    }
+
+    /**
+     * Copy the used and dirty bits of an evicted TLB entry for this process
+     * back into its page table.
+     *
+     * @param	entry	the evicted TLB entry.
+     */
+    void syncTLBEntry(TranslationEntry entry) {
+	TranslationEntry translation = getTranslation(entry.vpn);
+	if (translation != null) {
+	    translation.used |= entry.used;
+	    translation.dirty |= entry.dirty;
+	}
+    }
+
+    /** The page table, if it is a two-level one. */
+    private TwoLevelPageTable twoLevelPageTable = null;
+
+    /** The number of TLB misses this process has taken. */
+    private int numTLBMisses = 0;
+
+    /** This process's ASID, valid only in generation <tt>asidGeneration</tt>. */
+    int asid;
+    int asidGeneration = -1;
+
+    /** Rotates the victim chosen from a full TLB set. */
+    private static int nextVictim = 0;
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';